@@ -84,6 +84,14 @@ public class ShizukuSettings {
         getPreferences().edit().putInt("mode", method).apply();
     }
 
+    public static int getLastAdbPort(String network) {
+        return getPreferences().getInt("adb_port:" + network, -1);
+    }
+
+    public static void setLastAdbPort(String network, int port) {
+        getPreferences().edit().putInt("adb_port:" + network, port).apply();
+    }
+
     @AppCompatDelegate.NightMode
     public static int getNightMode() {
         int defValue = AppCompatDelegate.MODE_NIGHT_FOLLOW_SYSTEM;
@@ -1,6 +1,8 @@
 package moe.shizuku.manager.adb
 
+import android.os.SystemClock
 import android.util.Log
+import androidx.annotation.VisibleForTesting
 import moe.shizuku.manager.adb.AdbProtocol.ADB_AUTH_RSAPUBLICKEY
 import moe.shizuku.manager.adb.AdbProtocol.ADB_AUTH_SIGNATURE
 import moe.shizuku.manager.adb.AdbProtocol.ADB_AUTH_TOKEN
@@ -8,24 +10,42 @@ import moe.shizuku.manager.adb.AdbProtocol.A_AUTH
 import moe.shizuku.manager.adb.AdbProtocol.A_CLSE
 import moe.shizuku.manager.adb.AdbProtocol.A_CNXN
 import moe.shizuku.manager.adb.AdbProtocol.A_MAXDATA
+import moe.shizuku.manager.adb.AdbProtocol.A_MAXDATA_LEGACY
 import moe.shizuku.manager.adb.AdbProtocol.A_OKAY
 import moe.shizuku.manager.adb.AdbProtocol.A_OPEN
 import moe.shizuku.manager.adb.AdbProtocol.A_STLS
 import moe.shizuku.manager.adb.AdbProtocol.A_STLS_VERSION
 import moe.shizuku.manager.adb.AdbProtocol.A_VERSION
+import moe.shizuku.manager.adb.AdbProtocol.A_VERSION_MIN
+import moe.shizuku.manager.adb.AdbProtocol.A_VERSION_SKIP_CHECKSUM
 import moe.shizuku.manager.adb.AdbProtocol.A_WRTE
+import moe.shizuku.manager.adb.AdbProtocol.FEATURE_DELAYED_ACK
+import moe.shizuku.manager.adb.AdbProtocol.FEATURE_SHELL_V2
+import moe.shizuku.manager.adb.AdbProtocol.FEATURE_STAT_V2
+import moe.shizuku.manager.adb.AdbProtocol.INITIAL_DELAYED_ACK_BYTES
 import moe.shizuku.manager.ktx.logd
 import rikka.core.util.BuildUtils
+import java.io.BufferedOutputStream
 import java.io.Closeable
 import java.io.DataInputStream
 import java.io.DataOutputStream
+import java.io.IOException
 import java.net.Socket
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 import javax.net.ssl.SSLSocket
 
 private const val TAG = "AdbClient"
 
+private val EMPTY = ByteArray(0)
+
+private val HOST_FEATURES = listOf(FEATURE_SHELL_V2, FEATURE_DELAYED_ACK, FEATURE_STAT_V2)
+
+// Large enough to hold a header and a full payload, so that each message is flushed at once
+private const val WRITE_BUFFER_SIZE = AdbMessage.HEADER_LENGTH + A_MAXDATA
+
 class AdbClient(private val host: String, private val port: Int, private val key: AdbKey) : Closeable {
 
     private lateinit var socket: Socket
@@ -41,92 +61,267 @@ class AdbClient(private val host: String, private val port: Int, private val key
     private val inputStream get() = if (useTls) tlsInputStream else plainInputStream
     private val outputStream get() = if (useTls) tlsOutputStream else plainOutputStream
 
+    private val writeLock = Any()
+    private val nextLocalId = AtomicInteger(1)
+    private val streams = ConcurrentHashMap<Int, AdbStream>()
+    private val openedStreamCount = AtomicInteger()
+
+    @Volatile
+    private var readerThread: Thread? = null
+
+    @Volatile
+    private var readerError: Throwable? = null
+
+    @Volatile
+    private var closed = false
+
+    /**
+     * True if connected and neither closed nor disconnected by the device.
+     */
+    val isAlive get() = readerThread != null && !closed && readerError == null
+
+    /**
+     * Number of streams the device has accepted on this connection, whatever their state now.
+     */
+    val openedStreams get() = openedStreamCount.get()
+
+    /**
+     * Maximum payload of a single message, the smaller one of ours and the device's.
+     */
+    var maxPayload = A_MAXDATA_LEGACY
+        private set
+
+    /**
+     * Features of the device, from the banner of its A_CNXN.
+     */
+    var features: Set<String> = emptySet()
+        private set
+
+    private val delayedAck get() = features.contains(FEATURE_DELAYED_ACK)
+
+    /**
+     * Whether TLS can be used when the device asks for it with A_STLS.
+     */
+    @VisibleForTesting
+    internal var tlsSupported = BuildUtils.atLeast29
+
+    /**
+     * Protocol version, the smaller one of ours and the device's. Before the device's A_CNXN is
+     * received, it's the minimum version, which requires checksums.
+     */
+    @Volatile
+    private var protocolVersion = A_VERSION_MIN
+
+    private val skipChecksum get() = protocolVersion >= A_VERSION_SKIP_CHECKSUM
+
+    // Only used by the thread that reads, which is the caller of connect() and then the reader thread
+    private val readHeader = ByteBuffer.allocate(AdbMessage.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+
+    // Guarded by writeLock
+    private val writeHeader = ByteBuffer.allocate(AdbMessage.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+    private val writeAck = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN)
+
     fun connect() {
         socket = Socket(host, port)
         socket.tcpNoDelay = true
         plainInputStream = DataInputStream(socket.getInputStream())
-        plainOutputStream = DataOutputStream(socket.getOutputStream())
+        plainOutputStream = DataOutputStream(BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE))
 
-        write(A_CNXN, A_VERSION, A_MAXDATA, "host::")
+        write(A_CNXN, A_VERSION, A_MAXDATA, "host::features=${HOST_FEATURES.joinToString(",")}")
 
-        var message = read()
+        var message = read(handshake = true)
         if (message.command == A_STLS) {
-            if (!BuildUtils.atLeast29) {
+            if (!tlsSupported) {
                 error("Connect to adb with TLS is not supported before Android 9")
             }
             write(A_STLS, A_STLS_VERSION, 0)
 
+            // Sockets from the same SSLContext to the same host and port share the session cache,
+            // so reconnecting can resume the previous session instead of a full handshake
             val sslContext = key.sslContext
+            val start = SystemClock.elapsedRealtime()
             tlsSocket = sslContext.socketFactory.createSocket(socket, host, port, true) as SSLSocket
             tlsSocket.startHandshake()
-            Log.d(TAG, "Handshake succeeded.")
+            Log.d(TAG, "Handshake succeeded in ${SystemClock.elapsedRealtime() - start}ms, ${tlsSocket.session.protocol}.")
 
             tlsInputStream = DataInputStream(tlsSocket.inputStream)
-            tlsOutputStream = DataOutputStream(tlsSocket.outputStream)
+            tlsOutputStream = DataOutputStream(BufferedOutputStream(tlsSocket.outputStream, WRITE_BUFFER_SIZE))
             useTls = true
 
-            message = read()
+            message = read(handshake = true)
         } else if (message.command == A_AUTH) {
             if (message.command != A_AUTH && message.arg0 != ADB_AUTH_TOKEN) error("not A_AUTH ADB_AUTH_TOKEN")
             write(A_AUTH, ADB_AUTH_SIGNATURE, 0, key.sign(message.data))
 
-            message = read()
+            message = read(handshake = true)
             if (message.command != A_CNXN) {
                 write(A_AUTH, ADB_AUTH_RSAPUBLICKEY, 0, key.adbPublicKey)
-                message = read()
+                message = read(handshake = true)
             }
         }
 
         if (message.command != A_CNXN) error("not A_CNXN")
+
+        protocolVersion = message.arg0.coerceAtMost(A_VERSION)
+        maxPayload = message.arg1.coerceAtMost(A_MAXDATA)
+        features = parseFeatures(message.data)
+        Log.d(TAG, "connected, version=${Integer.toHexString(protocolVersion)}, maxPayload=$maxPayload, features=$features")
+
+        startReader()
+    }
+
+    /**
+     * Opens a new stream to [destination] (e.g. "shell:ls") on this connection.
+     *
+     * Any number of streams can be opened at the same time, each one can be read, written and
+     * closed independently.
+     */
+    fun openStream(destination: String): AdbStream {
+        if (readerThread == null) error("not connected")
+        readerError?.let { throw IOException("connection closed", it) }
+
+        val delayedAck = delayedAck
+        val stream = AdbStream(this, nextLocalId.getAndIncrement(), destination, delayedAck, INITIAL_DELAYED_ACK_BYTES)
+        streams[stream.localId] = stream
+        write(A_OPEN, stream.localId, if (delayedAck) INITIAL_DELAYED_ACK_BYTES else 0, destination)
+        try {
+            stream.awaitOpen()
+        } catch (e: Throwable) {
+            streams.remove(stream.localId)
+            throw e
+        }
+        openedStreamCount.incrementAndGet()
+        return stream
     }
 
     fun shellCommand(command: String, listener: ((ByteArray) -> Unit)?) {
-        val localId = 1
-        write(A_OPEN, localId, 0, "shell:$command")
+        openStream("shell:$command").use { stream ->
+            while (true) {
+                val data = stream.read() ?: break
+                if (data.isNotEmpty()) {
+                    listener?.invoke(data)
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs [command] without a pty. With "shell_v2", stdout, stderr and the exit status are
+     * available separately, otherwise it falls back to "shell:".
+     */
+    fun openShell(command: String): AdbShell {
+        return if (features.contains(FEATURE_SHELL_V2)) {
+            AdbShell(openStream("shell,v2,raw:$command"), true)
+        } else {
+            AdbShell(openStream("shell:$command"), false)
+        }
+    }
+
+    /**
+     * Opens the "sync:" service, which is used to push and pull files.
+     */
+    fun openSync(): AdbSync {
+        return AdbSync(openStream("sync:"), features)
+    }
+
+    internal fun sendOkay(localId: Int, remoteId: Int) = write(A_OKAY, localId, remoteId)
+
+    internal fun sendOkay(localId: Int, remoteId: Int, acked: Int) = synchronized(writeLock) {
+        writeAck.putInt(0, acked)
+        write(A_OKAY, localId, remoteId, writeAck.array())
+    }
+
+    internal fun sendWrite(localId: Int, remoteId: Int, data: ByteArray) = write(A_WRTE, localId, remoteId, data)
+
+    internal fun closeStream(stream: AdbStream) {
+        if (streams.remove(stream.localId) != null) {
+            try {
+                write(A_CLSE, stream.localId, stream.remoteId)
+            } catch (e: IOException) {
+                Log.w(TAG, "close ${stream.destination}", e)
+            }
+        }
+    }
+
+    private fun startReader() {
+        readerThread = Thread({
+            try {
+                while (true) {
+                    dispatch(read())
+                }
+            } catch (e: Throwable) {
+                if (!closed) {
+                    Log.w(TAG, "reader", e)
+                }
+                readerError = e
+            }
+            for (stream in streams.values) {
+                stream.onClose(readerError)
+            }
+            streams.clear()
+        }, "AdbClient-$host:$port").apply {
+            isDaemon = true
+            start()
+        }
+    }
 
-        var message = read()
+    private fun dispatch(message: AdbMessage) {
+        val remoteId = message.arg0
+        val localId = message.arg1
         when (message.command) {
             A_OKAY -> {
-                while (true) {
-                    message = read()
-                    val remoteId = message.arg0
-                    if (message.command == A_WRTE) {
-                        if (message.data_length > 0) {
-                            listener?.invoke(message.data!!)
-                        }
-                        write(A_OKAY, localId, remoteId)
-                    } else if (message.command == A_CLSE) {
-                        write(A_CLSE, localId, remoteId)
-                        break
-                    } else {
-                        error("not A_WRTE or A_CLSE")
-                    }
+                val data = message.data
+                val acked = if (delayedAck && data != null && data.size >= 4) {
+                    ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).int
+                } else {
+                    0
+                }
+                streams[localId]?.onOkay(remoteId, acked)
+            }
+            A_WRTE -> {
+                val stream = streams[localId]
+                if (stream == null) {
+                    write(A_CLSE, 0, remoteId)
+                } else {
+                    stream.onWrite(message.data ?: EMPTY)
                 }
             }
             A_CLSE -> {
-                val remoteId = message.arg0
-                write(A_CLSE, localId, remoteId)
+                val stream = streams.remove(localId) ?: return
+                if (stream.remoteId != 0) {
+                    write(A_CLSE, localId, remoteId)
+                }
+                stream.onClose()
             }
             else -> {
-                error("not A_OKAY or A_CLSE")
+                Log.w(TAG, "unexpected message ${message.toStringShort()}")
             }
         }
     }
 
-    private fun write(command: Int, arg0: Int, arg1: Int, data: ByteArray? = null) = write(AdbMessage(command, arg0, arg1, data))
+    private fun write(command: Int, arg0: Int, arg1: Int, data: String) = write(command, arg0, arg1, "$data\u0000".toByteArray())
 
-    private fun write(command: Int, arg0: Int, arg1: Int, data: String) = write(AdbMessage(command, arg0, arg1, data))
+    private fun write(command: Int, arg0: Int, arg1: Int, data: ByteArray? = null) = synchronized(writeLock) {
+        val dataLength = data?.size ?: 0
+        AdbMessage.writeHeader(writeHeader, command, arg0, arg1, data, !skipChecksum)
 
-    private fun write(message: AdbMessage) {
-        outputStream.write(message.toByteArray())
+        outputStream.write(writeHeader.array(), 0, AdbMessage.HEADER_LENGTH)
+        if (dataLength > 0) {
+            outputStream.write(data!!, 0, dataLength)
+        }
         outputStream.flush()
-        Log.d(TAG, "write ${message.toStringShort()}")
+        AdbTrace.write(command, arg0, arg1, data)
     }
 
-    private fun read(): AdbMessage {
-        val buffer = ByteBuffer.allocate(AdbMessage.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
-
-        inputStream.readFully(buffer.array(), 0, 24)
+    /**
+     * @param handshake true before the device's A_CNXN is received. The device already uses the
+     * version it agrees on for its A_AUTH and A_CNXN, so a message with data_crc32 0 can't be
+     * verified yet.
+     */
+    private fun read(handshake: Boolean = false): AdbMessage {
+        val buffer = readHeader
+        inputStream.readFully(buffer.array(), 0, AdbMessage.HEADER_LENGTH)
+        buffer.rewind()
 
         val command = buffer.int
         val arg0 = buffer.int
@@ -134,20 +329,34 @@ class AdbClient(private val host: String, private val port: Int, private val key
         val dataLength = buffer.int
         val checksum = buffer.int
         val magic = buffer.int
-        val data: ByteArray?
-        if (dataLength >= 0) {
-            data = ByteArray(dataLength)
+        if (dataLength < 0 || dataLength > A_MAXDATA) error("bad data_length $dataLength")
+
+        // The payload is handed to the stream, so it can't be reused
+        val data = if (dataLength > 0) ByteArray(dataLength) else null
+        if (data != null) {
             inputStream.readFully(data, 0, dataLength)
-        } else {
-            data = null
         }
         val message = AdbMessage(command, arg0, arg1, dataLength, checksum, magic, data)
-        message.validateOrThrow()
-        Log.d(TAG, "read ${message.toStringShort()}")
+
+        message.validateOrThrow(!skipChecksum && (!handshake || checksum != 0))
+        AdbTrace.read(command, arg0, arg1, data)
         return message
     }
 
+    private fun parseFeatures(banner: ByteArray?): Set<String> {
+        if (banner == null) return emptySet()
+        // device::ro.product.name=...;ro.product.model=...;features=shell_v2,cmd,...
+        val properties = String(banner).trimEnd('\u0000').substringAfter("::")
+        return properties.split(';')
+            .firstOrNull { it.startsWith("features=") }
+            ?.removePrefix("features=")
+            ?.split(',')
+            ?.filter { it.isNotEmpty() }
+            ?.toSet() ?: emptySet()
+    }
+
     override fun close() {
+        closed = true
         try {
             plainInputStream.close()
         } catch (e: Throwable) {
@@ -175,5 +384,11 @@ class AdbClient(private val host: String, private val port: Int, private val key
             } catch (e: Exception) {
             }
         }
+
+        readerThread?.let {
+            if (it !== Thread.currentThread()) {
+                it.join(1000)
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,106 @@
+package moe.shizuku.manager.adb
+
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.Network
+import android.os.Build
+import android.util.Log
+import androidx.annotation.RequiresApi
+import java.io.IOException
+
+private const val TAG = "AdbConnectionManager"
+
+/**
+ * Keeps one authenticated [AdbClient] alive, so that repeated starts don't need a new TCP
+ * connection, TLS handshake and RSA signature each time.
+ *
+ * The connection is dropped when the device is on another network (wireless debugging is
+ * restarted with a new port in that case) or when adbd closes it.
+ */
+@RequiresApi(Build.VERSION_CODES.R)
+object AdbConnectionManager {
+
+    private class Connection(val host: String, val port: Int, val network: Network?, val client: AdbClient)
+
+    private var connection: Connection? = null
+
+    /**
+     * Returns a connected client to [host]:[port], reusing the current one if it's still usable.
+     */
+    @Synchronized
+    fun get(context: Context, host: String, port: Int, key: AdbKey): AdbClient {
+        val network = activeNetwork(context)
+
+        connection?.let {
+            if (it.host == host && it.port == port && network != null && it.network == network && it.client.isAlive) {
+                Log.d(TAG, "reuse connection to $host:$port")
+                return it.client
+            }
+            Log.d(TAG, "drop connection to ${it.host}:${it.port}")
+            it.client.close()
+            connection = null
+        }
+
+        val client = AdbClient(host, port, key)
+        try {
+            client.connect()
+        } catch (e: Throwable) {
+            client.close()
+            throw e
+        }
+        connection = Connection(host, port, network, client)
+        return client
+    }
+
+    /**
+     * @return null if it can't be known, the connection is not reused then
+     */
+    private fun activeNetwork(context: Context): Network? {
+        return try {
+            context.getSystemService(ConnectivityManager::class.java)?.activeNetwork
+        } catch (e: RuntimeException) {
+            // SecurityException without ACCESS_NETWORK_STATE
+            Log.w(TAG, "activeNetwork", e)
+            null
+        }
+    }
+
+    /**
+     * Runs [block] with a connected client. If the connection turns out to be dead before [block]
+     * could open any stream, which can happen when adbd is restarted while idle, it reconnects and
+     * runs [block] again once.
+     *
+     * Once a stream has been accepted by the device, the failure is thrown instead, since the
+     * device may already have run part of [block] (e.g., started the server).
+     */
+    fun <T> use(context: Context, host: String, port: Int, key: AdbKey, block: (AdbClient) -> T): T {
+        val client = get(context, host, port, key)
+        val openedStreams = client.openedStreams
+        return try {
+            block(client)
+        } catch (e: IOException) {
+            if (client.isAlive || client.openedStreams != openedStreams) {
+                if (!client.isAlive) invalidate(client)
+                throw e
+            }
+
+            Log.w(TAG, "connection to $host:$port is dead, reconnect", e)
+            invalidate(client)
+            block(get(context, host, port, key))
+        }
+    }
+
+    @Synchronized
+    private fun invalidate(client: AdbClient) {
+        if (connection?.client === client) {
+            connection = null
+        }
+        client.close()
+    }
+
+    @Synchronized
+    fun close() {
+        connection?.client?.close()
+        connection = null
+    }
+}
@@ -3,12 +3,14 @@ package moe.shizuku.manager.adb
 import android.annotation.SuppressLint
 import android.content.SharedPreferences
 import android.os.Build
+import android.os.SystemClock
 import android.security.keystore.KeyGenParameterSpec
 import android.security.keystore.KeyProperties
 import android.util.Base64
 import android.util.Log
 import androidx.annotation.RequiresApi
 import androidx.core.content.edit
+import moe.shizuku.manager.ShizukuSettings
 import org.bouncycastle.asn1.x500.X500Name
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo
 import org.bouncycastle.cert.X509v3CertificateBuilder
@@ -69,6 +71,59 @@ class AdbKey(private val adbKeyStore: AdbKeyStore, name: String) {
                 -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 0x00,
                 0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02, 0x1a, 0x05, 0x00,
                 0x04, 0x14)
+
+        @Volatile
+        private var shared: AdbKey? = null
+
+        /**
+         * Returns the key of this app, stored with [PreferenceAdbKeyStore].
+         *
+         * Loading the key involves AndroidKeyStore, AES-GCM, building a certificate and the
+         * SSLContext, so it's only done once per process.
+         */
+        @JvmStatic
+        fun getShared(): AdbKey {
+            shared?.let { return it }
+            synchronized(this) {
+                shared?.let { return it }
+
+                val start = SystemClock.elapsedRealtime()
+                val key = AdbKey(PreferenceAdbKeyStore(ShizukuSettings.getPreferences()), "shizuku")
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                    key.sslContext
+                }
+                Log.d(TAG, "key loaded in ${SystemClock.elapsedRealtime() - start}ms")
+
+                shared = key
+                return key
+            }
+        }
+
+        /**
+         * Loads (or generates, on first run) the key in background, so that pairing and starting
+         * don't have to wait for a 2048-bit RSA key to be generated. They wait in [getShared]
+         * if this is still running.
+         *
+         * @param onFinish called on the background thread when done, even if it fails
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun preload(onFinish: (() -> Unit)? = null) {
+            if (shared != null) {
+                onFinish?.invoke()
+                return
+            }
+
+            Thread({
+                try {
+                    getShared()
+                } catch (e: Throwable) {
+                    Log.w(TAG, "preload", e)
+                } finally {
+                    onFinish?.invoke()
+                }
+            }, "AdbKeyPreload").start()
+        }
     }
 
     private val encryptionKey: Key
@@ -94,8 +149,14 @@ class AdbKey(private val adbKeyStore: AdbKeyStore, name: String) {
         ).build(signer)
         this.certificate = CertificateFactory.getInstance("X.509")
                 .generateCertificate(ByteArrayInputStream(x509Certificate.encoded)) as X509Certificate
+    }
 
-        Log.d(TAG, privateKey.toString())
+    private val signCipher = object : ThreadLocal<Cipher>() {
+        override fun initialValue(): Cipher {
+            return Cipher.getInstance("RSA/ECB/NoPadding").apply {
+                init(Cipher.ENCRYPT_MODE, privateKey)
+            }
+        }
     }
 
     val adbPublicKey: ByteArray by unsafeLazy {
@@ -159,6 +220,7 @@ class AdbKey(private val adbKeyStore: AdbKeyStore, name: String) {
             }
         }
         if (privateKey == null) {
+            val start = SystemClock.elapsedRealtime()
             val keyPairGenerator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_RSA)
             keyPairGenerator.initialize(RSAKeyGenParameterSpec(2048, RSAKeyGenParameterSpec.F4))
             val keyPair = keyPairGenerator.generateKeyPair()
@@ -168,13 +230,14 @@ class AdbKey(private val adbKeyStore: AdbKeyStore, name: String) {
             if (ciphertext != null) {
                 adbKeyStore.put(ciphertext)
             }
+            Log.i(TAG, "new key generated in ${SystemClock.elapsedRealtime() - start}ms")
         }
         return privateKey
     }
 
     fun sign(data: ByteArray?): ByteArray {
-        val cipher = Cipher.getInstance("RSA/ECB/NoPadding")
-        cipher.init(Cipher.ENCRYPT_MODE, privateKey)
+        // doFinal resets the cipher to the state after init, so it can be reused
+        val cipher = signCipher.get()!!
         cipher.update(PADDING)
         return cipher.doFinal(data)
     }
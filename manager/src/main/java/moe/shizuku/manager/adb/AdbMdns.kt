@@ -1,16 +1,21 @@
 package moe.shizuku.manager.adb
 
 import android.content.Context
+import android.net.ConnectivityManager
 import android.net.nsd.NsdManager
 import android.net.nsd.NsdServiceInfo
 import android.os.Build
+import android.os.Handler
+import android.os.Looper
 import android.util.Log
 import androidx.annotation.RequiresApi
 import androidx.lifecycle.MutableLiveData
+import moe.shizuku.manager.ShizukuSettings
 import java.io.IOException
 import java.net.InetSocketAddress
 import java.net.NetworkInterface
 import java.net.ServerSocket
+import java.net.Socket
 
 @RequiresApi(Build.VERSION_CODES.R)
 class AdbMdns(
@@ -19,17 +24,31 @@ class AdbMdns(
 ) {
 
     private var registered = false
+    @Volatile
     private var running = false
     private var serviceName: String? = null
     private val listener: DiscoveryListener
     private val nsdManager: NsdManager = context.getSystemService(NsdManager::class.java)
+    private val connectivityManager: ConnectivityManager = context.getSystemService(ConnectivityManager::class.java)
+
+    private val pendingResolves = ArrayDeque<NsdServiceInfo>()
+    private var activeResolves = 0
+    private val resolveAttempts = HashMap<String, Int>()
+    private val handler = Handler(Looper.getMainLooper())
+
+    @Volatile
+    private var localAddresses: Set<String>? = null
 
     fun start() {
         if (running) return
         running = true
+        localAddresses = null
         if (!registered) {
             nsdManager.discoverServices(serviceType, NsdManager.PROTOCOL_DNS_SD, listener)
         }
+        if (serviceType == TLS_CONNECT) {
+            probeLastPort()
+        }
     }
 
     fun stop() {
@@ -49,28 +68,130 @@ class AdbMdns(
     }
 
     private fun onServiceFound(info: NsdServiceInfo) {
+        synchronized(pendingResolves) {
+            pendingResolves.addLast(info)
+        }
+        resolveNext()
+    }
+
+    private fun resolveNext() {
+        val info = synchronized(pendingResolves) {
+            if (activeResolves >= MAX_CONCURRENT_RESOLVES) return
+            val info = pendingResolves.removeFirstOrNull() ?: return
+            activeResolves++
+            info
+        }
         nsdManager.resolveService(info, ResolveListener(this))
     }
 
+    private fun onResolveFinished(info: NsdServiceInfo, errorCode: Int) {
+        val retry = synchronized(pendingResolves) {
+            activeResolves--
+            if (errorCode == NsdManager.FAILURE_ALREADY_ACTIVE && running) {
+                // Another app may hold the only resolve slot, back off instead of failing again
+                // right away
+                val attempts = (resolveAttempts[info.serviceName] ?: 0) + 1
+                if (attempts < MAX_RESOLVE_ATTEMPTS) {
+                    resolveAttempts[info.serviceName] = attempts
+                    true
+                } else {
+                    Log.w(TAG, "give up resolving ${info.serviceName}")
+                    resolveAttempts.remove(info.serviceName)
+                    false
+                }
+            } else {
+                resolveAttempts.remove(info.serviceName)
+                false
+            }
+        }
+        if (retry) {
+            handler.postDelayed({
+                if (!running) return@postDelayed
+                synchronized(pendingResolves) {
+                    pendingResolves.addLast(info)
+                }
+                resolveNext()
+            }, RESOLVE_RETRY_DELAY)
+        }
+        resolveNext()
+    }
+
     private fun onServiceLost(info: NsdServiceInfo) {
         if (info.serviceName == serviceName) port.postValue(-1)
     }
 
     private fun onServiceResolved(resolvedService: NsdServiceInfo) {
-        if (running && NetworkInterface.getNetworkInterfaces()
-                .asSequence()
-                .any { networkInterface ->
-                    networkInterface.inetAddresses
-                        .asSequence()
-                        .any { resolvedService.host.hostAddress == it.hostAddress }
-                }
+        if (running && isLocalAddress(resolvedService.host.hostAddress)
             && isPortAvailable(resolvedService.port)
         ) {
             serviceName = resolvedService.serviceName
             port.postValue(resolvedService.port)
+
+            if (serviceType == TLS_CONNECT) {
+                networkKey()?.let { ShizukuSettings.setLastAdbPort(it, resolvedService.port) }
+            }
         }
     }
 
+    private fun isLocalAddress(address: String?): Boolean {
+        if (address == null) return false
+        localAddresses?.let { if (it.contains(address)) return true }
+
+        // Not found in cache, the addresses may have changed since it was built
+        val addresses = NetworkInterface.getNetworkInterfaces()
+            .asSequence()
+            .flatMap { it.inetAddresses.asSequence() }
+            .mapNotNull { it.hostAddress }
+            .toSet()
+        localAddresses = addresses
+        return addresses.contains(address)
+    }
+
+    /**
+     * Identifies the current network by interface and gateway, which needs no location permission
+     * unlike SSID.
+     *
+     * @return null if it can't be known, only discovery is used then
+     */
+    private fun networkKey(): String? {
+        val linkProperties = try {
+            val network = connectivityManager.activeNetwork ?: return null
+            connectivityManager.getLinkProperties(network) ?: return null
+        } catch (e: SecurityException) {
+            // Without ACCESS_NETWORK_STATE
+            Log.w(TAG, "networkKey", e)
+            return null
+        }
+        val gateway = linkProperties.routes.firstOrNull { it.isDefaultRoute && it.gateway != null }?.gateway?.hostAddress
+        return "${linkProperties.interfaceName}/$gateway"
+    }
+
+    /**
+     * Wireless debugging usually keeps its port on the same network, so try the last one while
+     * discovery is still running.
+     */
+    private fun probeLastPort() {
+        Thread({
+            val key = networkKey() ?: return@Thread
+            val lastPort = ShizukuSettings.getLastAdbPort(key)
+            if (lastPort <= 0) return@Thread
+
+            val open = try {
+                Socket().use {
+                    it.connect(InetSocketAddress("127.0.0.1", lastPort), PROBE_TIMEOUT)
+                    true
+                }
+            } catch (e: IOException) {
+                false
+            }
+            Log.v(TAG, "probe last port $lastPort: $open")
+
+            if (open && running) {
+                port.postValue(lastPort)
+            }
+        }, "AdbMdnsProbe").start()
+    }
+
     private fun isPortAvailable(port: Int) = try {
         ServerSocket().use {
             it.bind(InetSocketAddress("127.0.0.1", port), 1)
@@ -115,10 +236,15 @@ class AdbMdns(
     }
 
     internal class ResolveListener(private val adbMdns: AdbMdns) : NsdManager.ResolveListener {
-        override fun onResolveFailed(nsdServiceInfo: NsdServiceInfo, i: Int) {}
+        override fun onResolveFailed(nsdServiceInfo: NsdServiceInfo, i: Int) {
+            Log.v(TAG, "onResolveFailed: ${nsdServiceInfo.serviceName}, $i")
+
+            adbMdns.onResolveFinished(nsdServiceInfo, i)
+        }
 
         override fun onServiceResolved(nsdServiceInfo: NsdServiceInfo) {
             adbMdns.onServiceResolved(nsdServiceInfo)
+            adbMdns.onResolveFinished(nsdServiceInfo, 0)
         }
 
     }
@@ -127,6 +253,12 @@ class AdbMdns(
         const val TLS_CONNECT = "_adb-tls-connect._tcp"
         const val TLS_PAIRING = "_adb-tls-pairing._tcp"
         const val TAG = "AdbMdns"
+
+        // Before Android 14, NsdManager fails with FAILURE_ALREADY_ACTIVE for concurrent resolves
+        private val MAX_CONCURRENT_RESOLVES = if (Build.VERSION.SDK_INT >= 34) 4 else 1
+        private const val PROBE_TIMEOUT = 500
+        private const val RESOLVE_RETRY_DELAY = 150L
+        private const val MAX_RESOLVE_ATTEMPTS = 20
     }
 
     init {
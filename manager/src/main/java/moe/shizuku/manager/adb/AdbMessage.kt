@@ -36,14 +36,14 @@ class AdbMessage(
             (command.toLong() xor 0xFFFFFFFF).toInt(),
             data)
 
-    fun validate(): Boolean {
+    fun validate(checksum: Boolean = true): Boolean {
         if (command != magic xor -0x1) return false
-        if (data_length != 0 && crc32(data) != data_crc32) return false
+        if (checksum && data_length != 0 && crc32(data) != data_crc32) return false
         return true
     }
 
-    fun validateOrThrow() {
-        if (!validate()) throw IllegalArgumentException("bad message ${this.toStringShort()}")
+    fun validateOrThrow(checksum: Boolean = true) {
+        if (!validate(checksum)) throw IllegalArgumentException("bad message ${this.toStringShort()}")
     }
 
     fun toByteArray(): ByteArray {
@@ -98,33 +98,58 @@ class AdbMessage(
     }
 
     fun toStringShort(): String {
-        val commandString = when (command) {
-            A_SYNC -> "A_SYNC"
-            A_CNXN -> "A_CNXN"
-            A_AUTH -> "A_AUTH"
-            A_OPEN -> "A_OPEN"
-            A_OKAY -> "A_OKAY"
-            A_CLSE -> "A_CLSE"
-            A_WRTE -> "A_WRTE"
-            A_STLS -> "A_STLS"
-            else -> command.toString()
-        }
-        return "command=$commandString, arg0=$arg0, arg1=$arg1, data_length=$data_length, data_crc32=$data_crc32, magic=$magic, data=${data?.contentToString()}"
+        return toStringShort(command, arg0, arg1, data_length, data_crc32, magic, data)
     }
 
     companion object {
 
         const val HEADER_LENGTH = 24
 
+        /**
+         * Writes the header of a message to [buffer] (absolute puts, position is not changed).
+         *
+         * @param checksum if false, data_crc32 is 0, which is allowed since A_VERSION_SKIP_CHECKSUM
+         */
+        fun writeHeader(buffer: ByteBuffer, command: Int, arg0: Int, arg1: Int, data: ByteArray?, checksum: Boolean) {
+            buffer.putInt(0, command)
+            buffer.putInt(4, arg0)
+            buffer.putInt(8, arg1)
+            buffer.putInt(12, data?.size ?: 0)
+            buffer.putInt(16, if (checksum) crc32(data) else 0)
+            buffer.putInt(20, command xor -0x1)
+        }
+
+        private fun toStringShort(command: Int, arg0: Int, arg1: Int, data_length: Int, data_crc32: Int, magic: Int, data: ByteArray?): String {
+            // Payload can be as large as A_MAXDATA, only the beginning of it is useful
+            val dataString = data?.let {
+                if (it.size <= 32) it.contentToString() else it.copyOf(32).contentToString() + "..."
+            }
+            return "command=${commandToString(command)}, arg0=$arg0, arg1=$arg1, data_length=$data_length, data_crc32=$data_crc32, magic=$magic, data=$dataString"
+        }
+
+        fun commandToString(command: Int): String {
+            return when (command) {
+                A_SYNC -> "A_SYNC"
+                A_CNXN -> "A_CNXN"
+                A_AUTH -> "A_AUTH"
+                A_OPEN -> "A_OPEN"
+                A_OKAY -> "A_OKAY"
+                A_CLSE -> "A_CLSE"
+                A_WRTE -> "A_WRTE"
+                A_STLS -> "A_STLS"
+                else -> command.toString()
+            }
+        }
 
         private fun crc32(data: ByteArray?): Int {
             if (data == null) return 0
+            // Not a real crc32, just the sum of all bytes as unsigned
             var res = 0
-            for (b in data) {
-                if (b >= 0)
-                    res += b
-                else
-                    res += b + 256
+            var i = 0
+            val size = data.size
+            while (i < size) {
+                res += data[i].toInt() and 0xff
+                i++
             }
             return res
         }
@@ -15,7 +15,6 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.launch
 import moe.shizuku.manager.R
-import moe.shizuku.manager.ShizukuSettings
 import rikka.core.ktx.unsafeLazy
 import java.net.ConnectException
 
@@ -158,7 +157,7 @@ class AdbPairingService : Service() {
             val host = "127.0.0.1"
 
             val key = try {
-                AdbKey(PreferenceAdbKeyStore(ShizukuSettings.getPreferences()), "shizuku")
+                AdbKey.getShared()
             } catch (e: Throwable) {
                 e.printStackTrace()
                 return@launch
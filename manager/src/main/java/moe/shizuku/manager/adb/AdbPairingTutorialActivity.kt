@@ -33,6 +33,9 @@ class AdbPairingTutorialActivity : AppBarActivity() {
         setContentView(binding.root)
         supportActionBar?.setDisplayHomeAsUpEnabled(true)
 
+        // Pairing needs the key, load it while the user follows the tutorial
+        AdbKey.preload()
+
         notificationEnabled = isNotificationEnabled()
 
         if (notificationEnabled) {
@@ -11,12 +11,21 @@ object AdbProtocol {
     const val A_WRTE = 0x45545257
     const val A_STLS = 0x534C5453
 
-    const val A_VERSION = 0x01000000
-    const val A_MAXDATA = 4096
+    const val A_VERSION_MIN = 0x01000000
+    const val A_VERSION_SKIP_CHECKSUM = 0x01000001
+    const val A_VERSION = A_VERSION_SKIP_CHECKSUM
+    const val A_MAXDATA = 256 * 1024
+    const val A_MAXDATA_LEGACY = 4096
 
     const val A_STLS_VERSION = 0x01000000
 
     const val ADB_AUTH_TOKEN = 1
     const val ADB_AUTH_SIGNATURE = 2
     const val ADB_AUTH_RSAPUBLICKEY = 3
+
+    const val FEATURE_DELAYED_ACK = "delayed_ack"
+    const val FEATURE_STAT_V2 = "stat_v2"
+    const val FEATURE_SHELL_V2 = "shell_v2"
+
+    const val INITIAL_DELAYED_ACK_BYTES = 1024 * 1024
 }
\ No newline at end of file
@@ -0,0 +1,111 @@
+package moe.shizuku.manager.adb
+
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.EOFException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+private const val ID_STDIN = 0
+private const val ID_STDOUT = 1
+private const val ID_STDERR = 2
+private const val ID_EXIT = 3
+private const val ID_CLOSE_STDIN = 4
+private const val ID_WINDOW_SIZE_CHANGE = 5
+
+private const val HEADER_LENGTH = 5
+
+/**
+ * A shell command running on the device.
+ *
+ * If the device supports "shell_v2", stdout and stderr are delivered separately and the exit
+ * status is known. Otherwise, everything is delivered as stdout and [waitFor] returns null.
+ *
+ * https://cs.android.com/android/platform/superproject/+/master:packages/modules/adb/shell_protocol.h
+ */
+class AdbShell internal constructor(private val stream: AdbStream, val isV2: Boolean) : Closeable {
+
+    private val input = DataInputStream(stream.inputStream)
+    private val header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+
+    /**
+     * Exit status of the command, null if the command is still running or the device does not
+     * support "shell_v2".
+     */
+    var exitCode: Int? = null
+        private set
+
+    /**
+     * Reads output until the command exits.
+     *
+     * @return exit status, or null if it's unknown
+     */
+    fun waitFor(stdout: ((ByteArray) -> Unit)?, stderr: ((ByteArray) -> Unit)? = stdout): Int? {
+        if (!isV2) {
+            while (true) {
+                val data = stream.read() ?: break
+                if (data.isNotEmpty()) stdout?.invoke(data)
+            }
+            return null
+        }
+
+        while (exitCode == null) {
+            try {
+                input.readFully(header.array(), 0, HEADER_LENGTH)
+            } catch (e: EOFException) {
+                break
+            }
+            val id = header.get(0).toInt()
+            val length = header.getInt(1)
+            if (length < 0) adbError("bad shell packet length $length")
+
+            val data = ByteArray(length)
+            input.readFully(data)
+
+            when (id) {
+                ID_STDOUT -> stdout?.invoke(data)
+                ID_STDERR -> stderr?.invoke(data)
+                ID_EXIT -> exitCode = if (data.isNotEmpty()) data[0].toInt() and 0xff else 0
+            }
+        }
+        return exitCode
+    }
+
+    fun writeStdin(data: ByteArray) {
+        if (isV2) {
+            writePacket(ID_STDIN, data)
+        } else {
+            stream.write(data)
+        }
+    }
+
+    /**
+     * Closes stdin of the command, so that it sees EOF. Only supported by "shell_v2".
+     */
+    fun closeStdin() {
+        if (isV2) {
+            writePacket(ID_CLOSE_STDIN, ByteArray(0))
+        }
+    }
+
+    /**
+     * Only meaningful for commands started with a pty.
+     */
+    fun setWindowSize(rows: Int, cols: Int, xPixels: Int = 0, yPixels: Int = 0) {
+        if (isV2) {
+            writePacket(ID_WINDOW_SIZE_CHANGE, "${rows}x$cols,${xPixels}x$yPixels\u0000".toByteArray())
+        }
+    }
+
+    private fun writePacket(id: Int, data: ByteArray) {
+        val packet = ByteBuffer.allocate(HEADER_LENGTH + data.size).order(ByteOrder.LITTLE_ENDIAN)
+        packet.put(id.toByte())
+        packet.putInt(data.size)
+        packet.put(data)
+        stream.write(packet.array())
+    }
+
+    override fun close() {
+        stream.close()
+    }
+}
@@ -0,0 +1,222 @@
+package moe.shizuku.manager.adb
+
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * A single logical stream (A_OPEN ... A_CLSE) multiplexed over an [AdbClient] connection.
+ *
+ * Without "delayed_ack", each A_WRTE must be answered with an A_OKAY before the next one can be
+ * sent, in both directions. The A_OKAY for incoming data is only sent after [read] has taken it.
+ *
+ * With "delayed_ack", both sides keep a byte window instead. A_OKAY carries the number of bytes
+ * that were consumed, and writes are allowed as long as the window is not exhausted.
+ */
+class AdbStream internal constructor(
+    private val client: AdbClient,
+    val localId: Int,
+    val destination: String,
+    private val delayedAck: Boolean,
+    private val receiveWindow: Int
+) : Closeable {
+
+    @Volatile
+    var remoteId = 0
+        private set
+
+    @Volatile
+    private var opened = false
+
+    @Volatile
+    private var closed = false
+
+    @Volatile
+    private var error: Throwable? = null
+
+    private val openLatch = CountDownLatch(1)
+    private val incoming = LinkedBlockingQueue<ByteArray>()
+
+    private val sendLock = ReentrantLock()
+    private val sendWindowChanged = sendLock.newCondition()
+
+    // Without delayed ack, 1 means the previous A_WRTE has been acknowledged.
+    private var sendWindow = 0L
+
+    private var unacknowledged = 0
+
+    val isClosed get() = closed
+
+    /**
+     * Incoming data as a byte stream, for protocols that don't align with adb payloads.
+     * Don't mix with [read].
+     */
+    val inputStream: InputStream by lazy(LazyThreadSafetyMode.NONE) { StreamInputStream() }
+
+    /**
+     * Outgoing data as a byte stream, each write() becomes one or more A_WRTE. Wrap with a
+     * [java.io.BufferedOutputStream] to coalesce small writes.
+     */
+    val outputStream: OutputStream by lazy(LazyThreadSafetyMode.NONE) { StreamOutputStream() }
+
+    internal fun awaitOpen() {
+        openLatch.await()
+        error?.let { throw IOException("connection closed while opening $destination", it) }
+        if (!opened) adbError("failed to open $destination")
+    }
+
+    internal fun onOkay(remoteId: Int, acked: Int) {
+        if (!opened) {
+            this.remoteId = remoteId
+            opened = true
+            openLatch.countDown()
+        }
+        sendLock.withLock {
+            if (delayedAck) {
+                sendWindow += acked
+            } else {
+                sendWindow = 1
+            }
+            sendWindowChanged.signalAll()
+        }
+    }
+
+    internal fun onWrite(data: ByteArray) {
+        if (closed) return
+        incoming.put(data)
+    }
+
+    internal fun onClose(error: Throwable? = null) {
+        if (this.error == null) this.error = error
+        closed = true
+        openLatch.countDown()
+        incoming.put(EOF)
+        sendLock.withLock {
+            sendWindowChanged.signalAll()
+        }
+    }
+
+    /**
+     * Blocks until the device sends data on this stream.
+     *
+     * @return the payload, or null when the stream is closed
+     */
+    fun read(): ByteArray? {
+        val data = incoming.take()
+        if (data === EOF) {
+            incoming.put(EOF)
+            error?.let { throw IOException("connection closed", it) }
+            return null
+        }
+        if (!closed) {
+            if (!delayedAck) {
+                client.sendOkay(localId, remoteId)
+            } else {
+                // Acknowledge in batches, the device keeps sending until the window is used up
+                unacknowledged += data.size
+                if (unacknowledged >= receiveWindow / 2 || incoming.isEmpty()) {
+                    client.sendOkay(localId, remoteId, unacknowledged)
+                    unacknowledged = 0
+                }
+            }
+        }
+        return data
+    }
+
+    /**
+     * Writes [data] to the device, splitting it into payloads no larger than the negotiated
+     * maximum payload size.
+     */
+    fun write(data: ByteArray) {
+        // An empty A_WRTE carries nothing but would still use up the window
+        if (data.isEmpty()) return
+
+        var offset = 0
+        do {
+            val size = (data.size - offset).coerceAtMost(client.maxPayload)
+            awaitSendWindow(size)
+            val chunk = if (offset == 0 && size == data.size) data else data.copyOfRange(offset, offset + size)
+            client.sendWrite(localId, remoteId, chunk)
+            offset += size
+        } while (offset < data.size)
+    }
+
+    private fun awaitSendWindow(size: Int) {
+        sendLock.withLock {
+            while (!closed && sendWindow <= 0) {
+                sendWindowChanged.await()
+            }
+            if (closed) throw IOException("stream $destination is closed")
+            sendWindow -= if (delayedAck) size.toLong() else 1L
+        }
+    }
+
+    override fun close() {
+        if (closed) return
+        client.closeStream(this)
+        onClose()
+    }
+
+    private inner class StreamInputStream : InputStream() {
+
+        private var buffer: ByteArray? = null
+        private var position = 0
+
+        private fun fill(): Boolean {
+            while (buffer == null || position >= buffer!!.size) {
+                buffer = this@AdbStream.read() ?: return false
+                position = 0
+            }
+            return true
+        }
+
+        override fun read(): Int {
+            if (!fill()) return -1
+            return buffer!![position++].toInt() and 0xff
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) return 0
+            if (!fill()) return -1
+            val data = buffer!!
+            val count = len.coerceAtMost(data.size - position)
+            System.arraycopy(data, position, b, off, count)
+            position += count
+            return count
+        }
+
+        override fun available(): Int {
+            return buffer?.let { it.size - position } ?: 0
+        }
+
+        override fun close() {
+            this@AdbStream.close()
+        }
+    }
+
+    private inner class StreamOutputStream : OutputStream() {
+
+        override fun write(b: Int) {
+            this@AdbStream.write(byteArrayOf(b.toByte()))
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            if (len == 0) return
+            this@AdbStream.write(if (off == 0 && len == b.size) b else b.copyOfRange(off, off + len))
+        }
+
+        override fun close() {
+            this@AdbStream.close()
+        }
+    }
+
+    companion object {
+
+        private val EOF = ByteArray(0)
+    }
+}
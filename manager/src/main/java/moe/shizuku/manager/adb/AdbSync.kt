@@ -0,0 +1,153 @@
+package moe.shizuku.manager.adb
+
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+private const val ID_STAT = 0x54415453 // STAT
+private const val ID_STAT_V2 = 0x32415453 // STA2
+private const val ID_SEND = 0x444e4553 // SEND
+private const val ID_RECV = 0x56434552 // RECV
+private const val ID_DATA = 0x41544144 // DATA
+private const val ID_DONE = 0x454e4f44 // DONE
+private const val ID_OKAY = 0x59414b4f // OKAY
+private const val ID_FAIL = 0x4c494146 // FAIL
+private const val ID_QUIT = 0x54495551 // QUIT
+
+private const val SYNC_DATA_MAX = 64 * 1024
+
+/**
+ * Client of the "sync:" service, which is what "adb push", "adb pull" and "adb shell stat" use.
+ *
+ * https://cs.android.com/android/platform/superproject/+/master:packages/modules/adb/SYNC.TXT
+ */
+class AdbSync internal constructor(private val stream: AdbStream, private val features: Set<String>) : Closeable {
+
+    class Stat(val mode: Int, val size: Long, val mtime: Long) {
+
+        val exists get() = mode != 0
+
+        override fun toString(): String {
+            return "Stat(mode=${Integer.toOctalString(mode)}, size=$size, mtime=$mtime)"
+        }
+    }
+
+    private val input = DataInputStream(stream.inputStream)
+    private val output = BufferedOutputStream(stream.outputStream, SYNC_DATA_MAX + 8)
+
+    private val header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+    private val buffer = ByteArray(SYNC_DATA_MAX)
+
+    /**
+     * Returns the mode, size and mtime (in seconds) of [path]. The mode is 0 if it does not exist.
+     */
+    fun stat(path: String): Stat {
+        if (features.contains(AdbProtocol.FEATURE_STAT_V2)) {
+            writeRequest(ID_STAT_V2, path)
+            output.flush()
+
+            // id, error, dev, ino, mode, nlink, uid, gid, size, atime, mtime, ctime
+            val response = readFully(72)
+            if (response.getInt(0) != ID_STAT_V2) adbError("unexpected stat response ${response.getInt(0)}")
+            if (response.getInt(4) != 0) return Stat(0, 0, 0)
+            return Stat(response.getInt(24), response.getLong(40), response.getLong(56))
+        }
+
+        writeRequest(ID_STAT, path)
+        output.flush()
+
+        // id, mode, size, mtime
+        val response = readFully(16)
+        if (response.getInt(0) != ID_STAT) adbError("unexpected stat response ${response.getInt(0)}")
+        return Stat(response.getInt(4), response.getInt(8).toLong() and 0xffffffffL, response.getInt(12).toLong() and 0xffffffffL)
+    }
+
+    /**
+     * Sends everything from [input] to [path] on the device, overwriting the existing file.
+     *
+     * @param mode file mode, such as "0700".toInt(8)
+     * @param mtime modification time in seconds, returned by [stat] later
+     */
+    fun send(path: String, mode: Int, mtime: Long, input: InputStream) {
+        writeRequest(ID_SEND, "$path,$mode")
+
+        while (true) {
+            val count = input.read(buffer, 0, SYNC_DATA_MAX)
+            if (count == -1) break
+            if (count == 0) continue
+            writeHeader(ID_DATA, count)
+            output.write(buffer, 0, count)
+        }
+
+        writeHeader(ID_DONE, mtime.toInt())
+        output.flush()
+
+        val response = readFully(8)
+        when (response.getInt(0)) {
+            ID_OKAY -> return
+            ID_FAIL -> adbError("send $path failed: ${readString(response.getInt(4))}")
+            else -> adbError("unexpected send response ${response.getInt(0)}")
+        }
+    }
+
+    /**
+     * Receives [path] from the device and writes it to [output].
+     */
+    fun recv(path: String, output: OutputStream) {
+        writeRequest(ID_RECV, path)
+        this.output.flush()
+
+        while (true) {
+            val response = readFully(8)
+            val length = response.getInt(4)
+            when (response.getInt(0)) {
+                ID_DATA -> {
+                    if (length < 0 || length > SYNC_DATA_MAX) adbError("bad data length $length")
+                    input.readFully(buffer, 0, length)
+                    output.write(buffer, 0, length)
+                }
+                ID_DONE -> return
+                ID_FAIL -> adbError("recv $path failed: ${readString(length)}")
+                else -> adbError("unexpected recv response ${response.getInt(0)}")
+            }
+        }
+    }
+
+    private fun writeHeader(id: Int, length: Int) {
+        header.putInt(0, id)
+        header.putInt(4, length)
+        output.write(header.array(), 0, 8)
+    }
+
+    private fun writeRequest(id: Int, path: String) {
+        val bytes = path.toByteArray()
+        if (bytes.size > 1024) adbError("path too long: $path")
+        writeHeader(id, bytes.size)
+        output.write(bytes)
+    }
+
+    private fun readFully(size: Int): ByteBuffer {
+        val bytes = ByteArray(size)
+        input.readFully(bytes)
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+    }
+
+    private fun readString(length: Int): String {
+        if (length <= 0 || length > SYNC_DATA_MAX) return ""
+        input.readFully(buffer, 0, length)
+        return String(buffer, 0, length)
+    }
+
+    override fun close() {
+        try {
+            writeHeader(ID_QUIT, 0)
+            output.flush()
+        } catch (e: Exception) {
+        }
+        stream.close()
+    }
+}
@@ -0,0 +1,90 @@
+package moe.shizuku.manager.adb
+
+import android.util.Log
+import moe.shizuku.manager.BuildConfig
+import moe.shizuku.manager.adb.AdbProtocol.A_OKAY
+import moe.shizuku.manager.adb.AdbProtocol.A_WRTE
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Tracing of adb messages.
+ *
+ * Nothing is formatted unless the message passes the level check, so tracing costs a field read
+ * per message when disabled. Stream traffic (A_WRTE, A_OKAY) is sampled, and payloads are only
+ * dumped in debug builds with [payload] set.
+ */
+object AdbTrace {
+
+    private const val TAG = "AdbTrace"
+
+    const val LEVEL_NONE = 0
+
+    /**
+     * Connection and stream lifecycle: A_CNXN, A_AUTH, A_STLS, A_OPEN, A_CLSE.
+     */
+    const val LEVEL_CONTROL = 1
+
+    /**
+     * Also A_WRTE and A_OKAY, one of every [sampleRate] messages.
+     */
+    const val LEVEL_ALL = 2
+
+    private const val PAYLOAD_HEX_LIMIT = 64
+
+    @JvmStatic
+    @Volatile
+    var level = if (BuildConfig.DEBUG) LEVEL_CONTROL else LEVEL_NONE
+
+    @JvmStatic
+    @Volatile
+    var sampleRate = 64
+
+    @JvmStatic
+    @Volatile
+    var payload = false
+
+    private val counter = AtomicInteger()
+
+    @Suppress("NOTHING_TO_INLINE")
+    inline fun isEnabled() = level != LEVEL_NONE
+
+    fun write(command: Int, arg0: Int, arg1: Int, data: ByteArray?) {
+        if (isEnabled()) trace("write", command, arg0, arg1, data)
+    }
+
+    fun read(command: Int, arg0: Int, arg1: Int, data: ByteArray?) {
+        if (isEnabled()) trace("read", command, arg0, arg1, data)
+    }
+
+    private fun trace(direction: String, command: Int, arg0: Int, arg1: Int, data: ByteArray?) {
+        if (command == A_WRTE || command == A_OKAY) {
+            if (level < LEVEL_ALL) return
+            val rate = sampleRate
+            if (rate > 1 && counter.getAndIncrement() % rate != 0) return
+        }
+
+        val sb = StringBuilder(64)
+        sb.append(direction).append(' ').append(AdbMessage.commandToString(command))
+            .append(", arg0=").append(arg0)
+            .append(", arg1=").append(arg1)
+            .append(", data_length=").append(data?.size ?: 0)
+        if (data != null && payload && BuildConfig.DEBUG) {
+            sb.append(", data=")
+            appendHex(sb, data, PAYLOAD_HEX_LIMIT)
+        }
+        Log.d(TAG, sb.toString())
+    }
+
+    private fun appendHex(sb: StringBuilder, data: ByteArray, limit: Int) {
+        val size = data.size.coerceAtMost(limit)
+        for (i in 0 until size) {
+            val b = data[i].toInt() and 0xff
+            sb.append(HEX[b ushr 4]).append(HEX[b and 0xf])
+        }
+        if (data.size > size) {
+            sb.append("...")
+        }
+    }
+
+    private val HEX = "0123456789abcdef".toCharArray()
+}
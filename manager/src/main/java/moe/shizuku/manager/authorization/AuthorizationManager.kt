@@ -1,8 +1,11 @@
 package moe.shizuku.manager.authorization
 
+import android.content.pm.ApplicationInfo
 import android.content.pm.PackageInfo
 import android.content.pm.PackageManager
+import android.os.Bundle
 import android.os.Parcel
+import android.text.TextUtils
 import moe.shizuku.manager.BuildConfig
 import moe.shizuku.manager.Manifest
 import moe.shizuku.manager.utils.Logger.LOGGER
@@ -38,6 +41,57 @@ object AuthorizationManager {
         }
     }
 
+    /**
+     * Same as [getApplications], but the server only sends the fields the app list uses, the
+     * rest of the returned [PackageInfo] is empty.
+     *
+     * @return null if the server does not support it
+     */
+    private fun getApplicationsSlim(userId: Int): List<PackageInfo>? {
+        val data = Parcel.obtain()
+        val reply = Parcel.obtain()
+        return try {
+            data.writeInterfaceToken("moe.shizuku.server.IShizukuService")
+            data.writeInt(userId)
+            try {
+                if (!Shizuku.getBinder()!!.transact(ServerConstants.BINDER_TRANSACTION_getApplicationsSlim, data, reply, 0)) {
+                    return null
+                }
+            } catch (e: Throwable) {
+                throw RuntimeException(e)
+            }
+            reply.readException()
+            val count = reply.readInt()
+            val list = ArrayList<PackageInfo>(count)
+            repeat(count) {
+                val ai = ApplicationInfo()
+                ai.packageName = reply.readString()
+                ai.uid = reply.readInt()
+                ai.flags = reply.readInt()
+                if (reply.readInt() != 0) {
+                    ai.metaData = Bundle().apply { putBoolean("moe.shizuku.client.V3_REQUIRES_ROOT", true) }
+                }
+                ai.sourceDir = reply.readString()
+                ai.publicSourceDir = reply.readString()
+                ai.splitSourceDirs = reply.createStringArray()
+                ai.splitPublicSourceDirs = reply.createStringArray()
+                ai.icon = reply.readInt()
+                ai.labelRes = reply.readInt()
+                ai.nonLocalizedLabel = TextUtils.CHAR_SEQUENCE_CREATOR.createFromParcel(reply)
+                ai.enabled = true
+
+                list.add(PackageInfo().apply {
+                    packageName = ai.packageName
+                    applicationInfo = ai
+                })
+            }
+            list
+        } finally {
+            reply.recycle()
+            data.recycle()
+        }
+    }
+
     fun getPackages(): List<PackageInfo> {
         val packages: MutableList<PackageInfo> = ArrayList()
         if (Shizuku.isPreV11() || (Shizuku.getVersion() == 11 && Shizuku.getServerPatchVersion() < 3)) {
@@ -57,11 +111,48 @@ object AuthorizationManager {
                 packages.add(pi)
             }
         } else {
-            packages.addAll(getApplications(-1))
+            packages.addAll(getApplicationsSlim(-1) ?: getApplications(-1))
         }
         return packages
     }
 
+    private fun getFlagsForUids(uids: IntArray, mask: Int): IntArray? {
+        val data = Parcel.obtain()
+        val reply = Parcel.obtain()
+        return try {
+            data.writeInterfaceToken("moe.shizuku.server.IShizukuService")
+            data.writeIntArray(uids)
+            data.writeInt(mask)
+            try {
+                if (!Shizuku.getBinder()!!.transact(ServerConstants.BINDER_TRANSACTION_getFlagsForUids, data, reply, 0)) {
+                    // Server is older than the manager
+                    return null
+                }
+            } catch (e: Throwable) {
+                throw RuntimeException(e)
+            }
+            reply.readException()
+            reply.createIntArray()
+        } finally {
+            reply.recycle()
+            data.recycle()
+        }
+    }
+
+    /**
+     * Same as [granted] for each package, with one transaction in total if the server supports it.
+     */
+    fun granted(packages: List<PackageInfo>): BooleanArray {
+        if (!Shizuku.isPreV11()) {
+            val uids = IntArray(packages.size) { packages[it].applicationInfo.uid }
+            val flags = getFlagsForUids(uids, MASK_PERMISSION)
+            if (flags != null && flags.size == packages.size) {
+                return BooleanArray(flags.size) { (flags[it] and FLAG_ALLOWED) == FLAG_ALLOWED }
+            }
+        }
+        return BooleanArray(packages.size) { granted(packages[it].packageName, packages[it].applicationInfo.uid) }
+    }
+
     fun granted(packageName: String, uid: Int): Boolean {
         return if (Shizuku.isPreV11()) {
             ShizukuSystemApis.checkPermission(Manifest.permission.API_V23, packageName, uid / 100000) == PackageManager.PERMISSION_GRANTED
@@ -16,6 +16,7 @@ import androidx.fragment.app.FragmentManager
 import androidx.lifecycle.MutableLiveData
 import com.google.android.material.dialog.MaterialAlertDialogBuilder
 import moe.shizuku.manager.R
+import moe.shizuku.manager.adb.AdbKey
 import moe.shizuku.manager.adb.AdbMdns
 import moe.shizuku.manager.databinding.AdbDialogBinding
 import moe.shizuku.manager.starter.StarterActivity
@@ -33,6 +34,9 @@ class AdbDialogFragment : DialogFragment() {
         binding = AdbDialogBinding.inflate(LayoutInflater.from(context))
         adbMdns = AdbMdns(context, AdbMdns.TLS_CONNECT, port)
 
+        // Load the key while discovering, StarterActivity needs it right after
+        AdbKey.preload()
+
         var port = SystemProperties.getInt("service.adb.tcp.port", -1)
         if (port == -1) port = SystemProperties.getInt("persist.adb.tcp.port", -1)
 
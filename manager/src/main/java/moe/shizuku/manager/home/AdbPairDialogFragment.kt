@@ -24,7 +24,6 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.launch
 import moe.shizuku.manager.R
-import moe.shizuku.manager.ShizukuSettings
 import moe.shizuku.manager.adb.*
 import moe.shizuku.manager.databinding.AdbPairDialogBinding
 import rikka.lifecycle.viewModels
@@ -42,6 +41,8 @@ class AdbPairDialogFragment : DialogFragment() {
         val context = requireContext()
         binding = AdbPairDialogBinding.inflate(LayoutInflater.from(context))
 
+        AdbKey.preload()
+
         val builder = MaterialAlertDialogBuilder(context).apply {
             setTitle(R.string.dialog_adb_pairing_title)
             setView(binding.root)
@@ -176,7 +177,7 @@ private class ViewModel(context: Context) : androidx.lifecycle.ViewModel() {
             val host = "127.0.0.1"
 
             val key = try {
-                AdbKey(PreferenceAdbKeyStore(ShizukuSettings.getPreferences()), "shizuku")
+                AdbKey.getShared()
             } catch (e: Throwable) {
                 e.printStackTrace()
                 _result.postValue(AdbKeyException(e))
@@ -19,6 +19,7 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import moe.shizuku.manager.R
 import moe.shizuku.manager.ShizukuSettings
+import moe.shizuku.manager.adb.AdbKey
 import moe.shizuku.manager.app.AppBarActivity
 import moe.shizuku.manager.databinding.AboutDialogBinding
 import moe.shizuku.manager.databinding.HomeActivityBinding
@@ -28,6 +29,7 @@ import moe.shizuku.manager.settings.SettingsActivity
 import moe.shizuku.manager.starter.Starter
 import moe.shizuku.manager.utils.AppIconCache
 import rikka.core.ktx.unsafeLazy
+import rikka.core.util.BuildUtils.atLeast30
 import rikka.lifecycle.Status
 import rikka.lifecycle.viewModels
 import rikka.recyclerview.addEdgeSpacing
@@ -55,6 +57,11 @@ abstract class HomeActivity : AppBarActivity() {
 
         writeStarterFiles()
 
+        // Users of wireless adb will need the key to start again, load it before they tap
+        if (atLeast30 && ShizukuSettings.getLastLaunchMode() == ShizukuSettings.LaunchMethod.ADB) {
+            AdbKey.preload()
+        }
+
         val binding = HomeActivityBinding.inflate(layoutInflater)
         setContentView(binding.root)
 
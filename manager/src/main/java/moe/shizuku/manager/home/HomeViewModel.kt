@@ -1,6 +1,7 @@
 package moe.shizuku.manager.home
 
 import android.content.pm.PackageManager
+import android.os.Parcel
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.ViewModel
@@ -13,8 +14,10 @@ import moe.shizuku.manager.Manifest
 import moe.shizuku.manager.model.ServiceStatus
 import moe.shizuku.manager.utils.Logger.LOGGER
 import moe.shizuku.manager.utils.ShizukuSystemApis
+import org.json.JSONObject
 import rikka.lifecycle.Resource
 import rikka.shizuku.Shizuku
+import rikka.shizuku.server.ServerConstants
 
 class HomeViewModel : ViewModel() {
 
@@ -43,7 +46,30 @@ class HomeViewModel : ViewModel() {
         // Before a526d6bb, server will not exit on uninstall, manager installed later will get not permission
         // Run a random remote transaction here, report no permission as not running
         ShizukuSystemApis.checkPermission(Manifest.permission.API_V23, BuildConfig.APPLICATION_ID, 0)
-        return ServiceStatus(uid, apiVersion, patchVersion, seContext, permissionTest)
+        val startupTime = getStartupReport()?.optLong("total", -1) ?: -1
+        return ServiceStatus(uid, apiVersion, patchVersion, seContext, permissionTest, startupTime)
+    }
+
+    /**
+     * Startup report written by the server, null if the server is too old to have it.
+     */
+    private fun getStartupReport(): JSONObject? {
+        val data = Parcel.obtain()
+        val reply = Parcel.obtain()
+        return try {
+            data.writeInterfaceToken("moe.shizuku.server.IShizukuService")
+            if (!Shizuku.getBinder()!!.transact(ServerConstants.BINDER_TRANSACTION_getStartupReport, data, reply, 0)) {
+                return null
+            }
+            reply.readException()
+            reply.readString()?.let { JSONObject(it) }
+        } catch (e: Throwable) {
+            LOGGER.w(e, "getStartupReport")
+            null
+        } finally {
+            reply.recycle()
+            data.recycle()
+        }
     }
 
     fun reload() {
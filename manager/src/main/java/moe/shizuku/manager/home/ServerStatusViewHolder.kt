@@ -62,6 +62,12 @@ class ServerStatusViewHolder(private val binding: HomeServerStatusBinding, root:
             }
         } else {
             ""
+        }.let {
+            if (ok && status.startupTime > 0) {
+                it + "<br>" + context.getString(R.string.home_status_service_startup_time, status.startupTime)
+            } else {
+                it
+            }
         }
         textView.text = title.toHtml(HtmlCompat.FROM_HTML_OPTION_TRIM_WHITESPACE)
         summaryView.text = summary.toHtml(HtmlCompat.FROM_HTML_OPTION_TRIM_WHITESPACE)
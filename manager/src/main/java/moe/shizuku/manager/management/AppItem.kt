@@ -0,0 +1,9 @@
+package moe.shizuku.manager.management
+
+import android.content.pm.PackageInfo
+
+/**
+ * A row of the app list, [granted] is loaded for all rows at once and updated by the row itself
+ * when it's toggled, so that binding a row needs no binder call.
+ */
+class AppItem(val packageInfo: PackageInfo, var granted: Boolean)
@@ -1,6 +1,5 @@
 package moe.shizuku.manager.management
 
-import android.content.pm.PackageInfo
 import android.text.method.LinkMovementMethod
 import android.view.LayoutInflater
 import android.view.View
@@ -23,11 +22,11 @@ import rikka.recyclerview.BaseViewHolder
 import rikka.recyclerview.BaseViewHolder.Creator
 import rikka.shizuku.Shizuku
 
-class AppViewHolder(private val binding: AppListItemBinding) : BaseViewHolder<PackageInfo>(binding.root), View.OnClickListener {
+class AppViewHolder(private val binding: AppListItemBinding) : BaseViewHolder<AppItem>(binding.root), View.OnClickListener {
 
     companion object {
         @JvmField
-        val CREATOR = Creator<PackageInfo> { inflater: LayoutInflater, parent: ViewGroup? -> AppViewHolder(AppListItemBinding.inflate(inflater, parent, false)) }
+        val CREATOR = Creator<AppItem> { inflater: LayoutInflater, parent: ViewGroup? -> AppViewHolder(AppListItemBinding.inflate(inflater, parent, false)) }
     }
 
 
@@ -42,8 +41,8 @@ class AppViewHolder(private val binding: AppListItemBinding) : BaseViewHolder<Pa
         itemView.setOnClickListener(this)
     }
 
-    private inline val packageName get() = data.packageName
-    private inline val ai get() = data.applicationInfo
+    private inline val packageName get() = data.packageInfo.packageName
+    private inline val ai get() = data.packageInfo.applicationInfo
     private inline val uid get() = ai.uid
 
     private var loadIconJob: Job? = null
@@ -51,11 +50,12 @@ class AppViewHolder(private val binding: AppListItemBinding) : BaseViewHolder<Pa
     override fun onClick(v: View) {
         val context = v.context
         try {
-            if (AuthorizationManager.granted(packageName, uid)) {
+            if (data.granted) {
                 AuthorizationManager.revoke(packageName, uid)
             } else {
                 AuthorizationManager.grant(packageName, uid)
             }
+            data.granted = !data.granted
         } catch (e: SecurityException) {
             val uid = try {
                 Shizuku.getUid()
@@ -91,14 +91,14 @@ class AppViewHolder(private val binding: AppListItemBinding) : BaseViewHolder<Pa
             ai.loadLabel(pm)
         }
         pkg.text = ai.packageName
-        switchWidget.isChecked = AuthorizationManager.granted(packageName, uid)
+        switchWidget.isChecked = data.granted
         root.visibility = if (ai.metaData != null && ai.metaData.getBoolean("moe.shizuku.client.V3_REQUIRES_ROOT")) View.VISIBLE else View.GONE
 
         loadIconJob = AppIconCache.loadIconBitmapAsync(context, ai, ai.uid / 100000, icon)
     }
 
     override fun onBind(payloads: List<Any>) {
-        switchWidget.isChecked = AuthorizationManager.granted(packageName, uid)
+        switchWidget.isChecked = data.granted
     }
 
     override fun onRecycle() {
@@ -67,7 +67,7 @@ class ApplicationManagementActivity : AppBarActivity() {
 
         adapter.registerAdapterDataObserver(object : AdapterDataObserver() {
             override fun onItemRangeChanged(positionStart: Int, itemCount: Int, payload: Any?) {
-                viewModel.loadCount()
+                viewModel.updateCount()
             }
         })
 
@@ -82,6 +82,9 @@ class ApplicationManagementActivity : AppBarActivity() {
 
     override fun onResume() {
         super.onResume()
-        adapter.notifyDataSetChanged()
+        // Permissions may have been changed elsewhere, reload them in one go
+        if (viewModel.packages.value != null) {
+            viewModel.load()
+        }
     }
 }
@@ -1,7 +1,5 @@
 package moe.shizuku.manager.management;
 
-import android.content.pm.PackageInfo;
-
 import java.util.List;
 
 import rikka.recyclerview.BaseRecyclerViewAdapter;
@@ -12,7 +10,7 @@ public class AppsAdapter extends BaseRecyclerViewAdapter<ClassCreatorPool> {
     public AppsAdapter() {
         super();
 
-        getCreatorPool().putRule(PackageInfo.class, AppViewHolder.CREATOR);
+        getCreatorPool().putRule(AppItem.class, AppViewHolder.CREATOR);
         getCreatorPool().putRule(Object.class, EmptyViewHolder.CREATOR);
         setHasStableIds(true);
     }
@@ -27,7 +25,7 @@ public class AppsAdapter extends BaseRecyclerViewAdapter<ClassCreatorPool> {
         return new ClassCreatorPool();
     }
 
-    public void updateData(List<PackageInfo> data) {
+    public void updateData(List<AppItem> data) {
         getItems().clear();
         if (data.isEmpty()) {
             getItems().add(new Object());
@@ -1,7 +1,6 @@
 package moe.shizuku.manager.management
 
 import android.content.Context
-import android.content.pm.PackageInfo
 import androidx.activity.ComponentActivity
 import androidx.annotation.MainThread
 import androidx.fragment.app.Fragment
@@ -16,7 +15,6 @@ import moe.shizuku.manager.authorization.AuthorizationManager
 import rikka.lifecycle.Resource
 import rikka.lifecycle.activitySharedViewModels
 import rikka.lifecycle.sharedViewModels
-import java.util.*
 
 @MainThread
 fun ComponentActivity.appsViewModel() = sharedViewModels { AppsViewModel(this) }
@@ -26,8 +24,8 @@ fun Fragment.appsViewModel() = activitySharedViewModels { AppsViewModel(requireC
 
 class AppsViewModel(context: Context) : ViewModel() {
 
-    private val _packages = MutableLiveData<Resource<List<PackageInfo>>>()
-    val packages = _packages as LiveData<Resource<List<PackageInfo>>>
+    private val _packages = MutableLiveData<Resource<List<AppItem>>>()
+    val packages = _packages as LiveData<Resource<List<AppItem>>>
 
     private val _grantedCount = MutableLiveData<Resource<Int>>()
     val grantedCount = _grantedCount as LiveData<Resource<Int>>
@@ -35,14 +33,11 @@ class AppsViewModel(context: Context) : ViewModel() {
     fun load() {
         viewModelScope.launch(Dispatchers.IO) {
             try {
-                val list: MutableList<PackageInfo> = ArrayList()
-                var count = 0
-                for (pi in AuthorizationManager.getPackages()) {
-                    list.add(pi)
-                    if (AuthorizationManager.granted(pi.packageName, pi.applicationInfo.uid)) count++
-                }
-                _packages.postValue(Resource.success(list))
-                _grantedCount.postValue(Resource.success(count))
+                val list = AuthorizationManager.getPackages()
+                val granted = AuthorizationManager.granted(list)
+                val items = List(list.size) { AppItem(list[it], granted[it]) }
+                _packages.postValue(Resource.success(items))
+                _grantedCount.postValue(Resource.success(granted.count { it }))
             } catch (e: CancellationException) {
 
             } catch (e: Throwable) {
@@ -55,16 +50,9 @@ class AppsViewModel(context: Context) : ViewModel() {
     fun loadCount() {
         viewModelScope.launch(Dispatchers.IO) {
             try {
-                val list: MutableList<PackageInfo> = ArrayList()
-                val packages: MutableList<String> = ArrayList()
-                for (pi in AuthorizationManager.getPackages()) {
-                    list.add(pi)
-                    if (AuthorizationManager.granted(
-                            pi.packageName,
-                            pi.applicationInfo.uid
-                        )
-                    ) packages.add(pi.packageName)
-                }
+                val list = AuthorizationManager.getPackages()
+                val count = AuthorizationManager.granted(list).count { it }
+                _grantedCount.postValue(Resource.success(count))
             } catch (e: CancellationException) {
 
             } catch (e: Throwable) {
@@ -73,4 +61,12 @@ class AppsViewModel(context: Context) : ViewModel() {
             }
         }
     }
+
+    /**
+     * Updates the count from the loaded list, after a row is toggled.
+     */
+    fun updateCount() {
+        val items = packages.value?.data ?: return
+        _grantedCount.value = Resource.success(items.count { it.granted })
+    }
 }
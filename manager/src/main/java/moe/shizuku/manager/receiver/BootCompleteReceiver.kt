@@ -9,7 +9,9 @@ import com.topjohnwu.superuser.Shell
 import moe.shizuku.manager.AppConstants
 import moe.shizuku.manager.ShizukuSettings
 import moe.shizuku.manager.ShizukuSettings.LaunchMethod
+import moe.shizuku.manager.starter.AdbStartService
 import moe.shizuku.manager.starter.Starter
+import rikka.core.util.BuildUtils.atLeast30
 import rikka.shizuku.Shizuku
 
 class BootCompleteReceiver : BroadcastReceiver() {
@@ -23,13 +25,18 @@ class BootCompleteReceiver : BroadcastReceiver() {
         if (Process.myUid() / 100000 > 0) return
 
         // TODO Record if receiver is called
-        if (ShizukuSettings.getLastLaunchMode() == LaunchMethod.ROOT) {
+        val mode = ShizukuSettings.getLastLaunchMode()
+        if (mode == LaunchMethod.ROOT || (mode == LaunchMethod.ADB && atLeast30)) {
             Log.i(AppConstants.TAG, "start on boot, action=" + intent.action)
             if (Shizuku.pingBinder()) {
                 Log.i(AppConstants.TAG, "service is running")
                 return
             }
-            start(context)
+            if (mode == LaunchMethod.ROOT) {
+                start(context)
+            } else {
+                AdbStartService.start(context)
+            }
         }
     }
 
@@ -0,0 +1,23 @@
+package moe.shizuku.manager.receiver
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import moe.shizuku.manager.ShizukuSettings
+import moe.shizuku.manager.adb.AdbKey
+import rikka.core.util.BuildUtils.atLeast30
+
+class PackageReplacedReceiver : BroadcastReceiver() {
+
+    override fun onReceive(context: Context, intent: Intent) {
+        if (Intent.ACTION_MY_PACKAGE_REPLACED != intent.action) {
+            return
+        }
+
+        if (atLeast30 && ShizukuSettings.getLastLaunchMode() == ShizukuSettings.LaunchMethod.ADB) {
+            // Make sure the adb key is loaded before the user starts again
+            val result = goAsync()
+            AdbKey.preload { result.finish() }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package moe.shizuku.manager.starter
+
+import android.app.ForegroundServiceStartNotAllowedException
+import android.app.Notification
+import android.app.NotificationChannel
+import android.app.NotificationManager
+import android.app.Service
+import android.content.Context
+import android.content.Intent
+import android.os.Build
+import android.os.Handler
+import android.os.IBinder
+import android.os.Looper
+import android.os.SystemClock
+import android.util.Log
+import androidx.annotation.RequiresApi
+import androidx.lifecycle.MutableLiveData
+import androidx.lifecycle.Observer
+import moe.shizuku.manager.AppConstants
+import moe.shizuku.manager.R
+import moe.shizuku.manager.adb.AdbConnectionManager
+import moe.shizuku.manager.adb.AdbKey
+import moe.shizuku.manager.adb.AdbMdns
+import rikka.shizuku.Shizuku
+
+/**
+ * Starts with wireless adb on boot, if wireless debugging is still enabled and the device has
+ * been paired before. Discovery and starting are retried a few times, since adbd may not be
+ * ready this early.
+ *
+ * It's a foreground service instead of work in BootCompleteReceiver, since discovery alone may
+ * take much longer than a broadcast receiver is allowed to run.
+ */
+@RequiresApi(Build.VERSION_CODES.R)
+class AdbStartService : Service() {
+
+    companion object {
+
+        private const val notificationChannel = "service_status"
+        private const val notificationId = 2
+
+        private const val ADB_DISCOVERY_TIMEOUT = 60 * 1000L
+        private const val ADB_MAX_ATTEMPTS = 3
+        private const val ADB_RETRY_DELAY = 3 * 1000L
+
+        fun start(context: Context) {
+            try {
+                context.startForegroundService(Intent(context, AdbStartService::class.java))
+            } catch (e: Throwable) {
+                Log.w(AppConstants.TAG, "start on boot with adb: can't start service", e)
+            }
+        }
+    }
+
+    private val handler = Handler(Looper.getMainLooper())
+    private val port = MutableLiveData<Int>()
+    private var adbMdns: AdbMdns? = null
+    private var attempt = 0
+    private var running = false
+
+    private val observer = Observer<Int> { onPortFound(it) }
+
+    private val finish = Runnable {
+        Log.w(AppConstants.TAG, "start on boot with adb: wireless debugging not found")
+        stop()
+    }
+
+    override fun onBind(intent: Intent?): IBinder? = null
+
+    override fun onCreate() {
+        super.onCreate()
+
+        getSystemService(NotificationManager::class.java).createNotificationChannel(
+            NotificationChannel(
+                notificationChannel,
+                getString(R.string.notification_channel_service_status),
+                NotificationManager.IMPORTANCE_MIN
+            ).apply {
+                setSound(null, null)
+                setShowBadge(false)
+                setAllowBubbles(false)
+            })
+    }
+
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
+        val notification = Notification.Builder(this, notificationChannel)
+            .setSmallIcon(R.drawable.ic_system_icon)
+            .setContentTitle(getString(R.string.notification_service_starting))
+            .build()
+        try {
+            startForeground(notificationId, notification)
+        } catch (e: Throwable) {
+            Log.e(AppConstants.TAG, "start on boot with adb: startForeground failed", e)
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+                && e is ForegroundServiceStartNotAllowedException) {
+                stopSelf()
+                return START_NOT_STICKY
+            }
+        }
+
+        if (!running) {
+            running = true
+            adbMdns = AdbMdns(this, AdbMdns.TLS_CONNECT, port)
+            startDiscovery()
+        }
+        return START_NOT_STICKY
+    }
+
+    override fun onDestroy() {
+        super.onDestroy()
+        handler.removeCallbacksAndMessages(null)
+        port.removeObserver(observer)
+        adbMdns?.stop()
+    }
+
+    private fun startDiscovery() {
+        port.value = -1
+        port.observeForever(observer)
+        adbMdns?.start()
+        handler.postDelayed(finish, ADB_DISCOVERY_TIMEOUT)
+    }
+
+    private fun stopDiscovery() {
+        port.removeObserver(observer)
+        adbMdns?.stop()
+        handler.removeCallbacks(finish)
+    }
+
+    private fun stop() {
+        stopDiscovery()
+        running = false
+        stopForeground(STOP_FOREGROUND_REMOVE)
+        stopSelf()
+    }
+
+    private fun onPortFound(port: Int) {
+        if (port > 65535 || port < 1) return
+
+        stopDiscovery()
+        attempt++
+
+        Thread({
+            val started = startAdb(port)
+            handler.post {
+                if (started || attempt >= ADB_MAX_ATTEMPTS) {
+                    stop()
+                } else {
+                    handler.postDelayed({ startDiscovery() }, ADB_RETRY_DELAY)
+                }
+            }
+        }, "BootAdbStarter").start()
+    }
+
+    private fun startAdb(port: Int): Boolean {
+        return try {
+            val key = AdbKey.getShared()
+            val exitCode = AdbConnectionManager.use(this, "127.0.0.1", port, key) { client ->
+                val command = Starter.pushAdbFiles(this, client)
+                client.openShell(command).use { shell ->
+                    shell.waitFor({ Log.i(AppConstants.TAG, String(it).trimEnd()) })
+                }
+            }
+            AdbConnectionManager.close()
+
+            if (exitCode != null && exitCode != 0) {
+                Log.w(AppConstants.TAG, "start on boot with adb: starter exit with $exitCode")
+                return false
+            }
+
+            Shizuku.addBinderReceivedListenerSticky(object : Shizuku.OnBinderReceivedListener {
+                override fun onBinderReceived() {
+                    Shizuku.removeBinderReceivedListener(this)
+                    Log.i(AppConstants.TAG, "start on boot with adb: server ready at ${SystemClock.elapsedRealtime()}ms since boot")
+                }
+            })
+            true
+        } catch (e: Throwable) {
+            Log.w(AppConstants.TAG, "start on boot with adb", e)
+            false
+        }
+    }
+}
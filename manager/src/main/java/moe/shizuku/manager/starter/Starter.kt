@@ -6,15 +6,27 @@ import android.os.UserManager
 import android.system.ErrnoException
 import android.system.Os
 import moe.shizuku.manager.R
+import moe.shizuku.manager.adb.AdbClient
+import moe.shizuku.manager.adb.AdbException
+import moe.shizuku.manager.adb.AdbSync
 import moe.shizuku.manager.ktx.createDeviceProtectedStorageContextCompat
 import moe.shizuku.manager.ktx.logd
 import moe.shizuku.manager.ktx.loge
 import rikka.core.os.FileUtils
 import java.io.*
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
 import java.util.zip.ZipFile
 
 object Starter {
 
+    private const val ADB_STARTER_PATH = "/data/local/tmp/shizuku_starter"
+    private const val ADB_STARTER_STAMP_PATH = "/data/local/tmp/shizuku_starter.stamp"
+    private const val ADB_SCRIPT_PATH = "/data/local/tmp/shizuku_start.sh"
+
     private var commandInternal = arrayOfNulls<String>(2)
 
     val dataCommand get() = commandInternal[0]!!
@@ -83,38 +95,177 @@ object Starter {
         }
     }
 
+    /**
+     * Pushes the starter and the script to /data/local/tmp with the "sync:" service, so that
+     * adb does not need to read files from shared storage.
+     *
+     * The starter is not pushed again if the stamp pushed with it has the same CRC-32 and size as
+     * the one in the apk. The mtime can't be used, start.sh replaces the starter with cp when
+     * started in other ways, it removes the stamp when doing so.
+     *
+     * @return the command to run in adb shell
+     */
+    fun pushAdbFiles(context: Context, client: AdbClient): String {
+        val ai = context.applicationInfo
+        val so = "lib/${Build.SUPPORTED_ABIS[0]}/libshizuku.so"
+        val mtime = File(ai.sourceDir).lastModified() / 1000
+
+        client.openSync().use { sync ->
+            ZipFile(ai.sourceDir).use { apk ->
+                val entry = apk.getEntry(so) ?: throw FileNotFoundException("$so not found in ${ai.sourceDir}")
+                val stamp = "${entry.crc} ${entry.size}"
+                val stat = sync.stat(ADB_STARTER_PATH)
+                if (entry.crc != -1L && stat.exists && stat.size == entry.size && readStamp(sync) == stamp) {
+                    logd("$ADB_STARTER_PATH is up to date")
+                } else {
+                    apk.getInputStream(entry).use {
+                        sync.send(ADB_STARTER_PATH, 448 /* 0700 */, mtime, it)
+                    }
+                    sync.send(ADB_STARTER_STAMP_PATH, 420 /* 0644 */, mtime, ByteArrayInputStream(stamp.toByteArray()))
+                }
+            }
+
+            // Empty source path, start.sh execs the starter in place instead of copying it
+            val script = renderScript(context, "")
+            sync.send(ADB_SCRIPT_PATH, 420 /* 0644 */, mtime, ByteArrayInputStream(script))
+        }
+        return "sh $ADB_SCRIPT_PATH --apk=${ai.sourceDir}"
+    }
+
+    private fun readStamp(sync: AdbSync): String? {
+        val out = ByteArrayOutputStream()
+        return try {
+            sync.recv(ADB_STARTER_STAMP_PATH, out)
+            out.toString()
+        } catch (e: AdbException) {
+            // Not pushed yet, or removed by start.sh
+            null
+        }
+    }
+
+    /**
+     * Extracts libshizuku.so from the apk to [out].
+     *
+     * Nothing is written if [out] already has the same size and CRC-32 as the zip entry. When
+     * the entry is stored (uncompressed, which is the case with extractNativeLibs=false), it's
+     * copied straight from the apk with [FileChannel.transferTo].
+     */
     private fun copyStarter(context: Context, out: File): String {
         val so = "lib/${Build.SUPPORTED_ABIS[0]}/libshizuku.so"
         val ai = context.applicationInfo
 
-        val fos = FileOutputStream(out)
-        val apk = ZipFile(ai.sourceDir)
-        val entries = apk.entries()
-        while (entries.hasMoreElements()) {
-            val entry = entries.nextElement() ?: break
-            if (entry.name != so) continue
-
-            val buf = ByteArray(entry.size.toInt())
-            val dis = DataInputStream(apk.getInputStream(entry))
-            dis.readFully(buf)
-            FileUtils.copy(ByteArrayInputStream(buf), fos)
-            break
+        ZipFile(ai.sourceDir).use { apk ->
+            val entry = apk.getEntry(so) ?: throw FileNotFoundException("$so not found in ${ai.sourceDir}")
+            if (out.length() == entry.size && entry.crc != -1L && crc32(out) == entry.crc) {
+                logd("$out is up to date")
+                return out.absolutePath
+            }
+
+            val tmp = File(out.parentFile, out.name + ".tmp")
+            val offset = if (entry.method == ZipEntry.STORED) findDataOffset(ai.sourceDir, so) else -1L
+            FileOutputStream(tmp).use { fos ->
+                if (offset != -1L) {
+                    FileInputStream(ai.sourceDir).channel.use { channel ->
+                        var position = 0L
+                        while (position < entry.size) {
+                            val count = channel.transferTo(offset + position, entry.size - position, fos.channel)
+                            if (count <= 0) throw EOFException("unexpected end of ${ai.sourceDir}")
+                            position += count
+                        }
+                    }
+                } else {
+                    apk.getInputStream(entry).use { FileUtils.copy(it, fos) }
+                }
+            }
+            if (!tmp.renameTo(out)) {
+                tmp.delete()
+                throw IOException("can't rename $tmp to $out")
+            }
         }
         return out.absolutePath
     }
 
+    private fun crc32(file: File): Long {
+        if (!file.exists()) return -1L
+        val crc = CRC32()
+        val buf = ByteArray(64 * 1024)
+        FileInputStream(file).use {
+            while (true) {
+                val count = it.read(buf)
+                if (count == -1) break
+                crc.update(buf, 0, count)
+            }
+        }
+        return crc.value
+    }
+
+    /**
+     * Returns the offset of the data of the stored entry [name] in [zip], or -1 if it can't be
+     * found, [ZipFile] does not expose it.
+     */
+    private fun findDataOffset(zip: String, name: String): Long {
+        RandomAccessFile(zip, "r").use { file ->
+            // End of central directory record, the comment is at most 65535 bytes
+            val tailSize = file.length().coerceAtMost(22L + 65535L).toInt()
+            val tail = ByteArray(tailSize)
+            file.seek(file.length() - tailSize)
+            file.readFully(tail)
+            val eocd = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN)
+            var i = tailSize - 22
+            while (i >= 0 && eocd.getInt(i) != 0x06054b50) i--
+            if (i < 0) return -1L
+
+            val cdSize = eocd.getInt(i + 12).toLong() and 0xffffffffL
+            val cdOffset = eocd.getInt(i + 16).toLong() and 0xffffffffL
+            if (cdOffset == 0xffffffffL) return -1L // zip64
+
+            val cd = ByteBuffer.allocate(cdSize.toInt()).order(ByteOrder.LITTLE_ENDIAN)
+            file.channel.read(cd, cdOffset)
+            val nameBytes = name.toByteArray()
+
+            var p = 0
+            while (p + 46 <= cd.limit() && cd.getInt(p) == 0x02014b50) {
+                val nameLength = cd.getShort(p + 28).toInt() and 0xffff
+                val extraLength = cd.getShort(p + 30).toInt() and 0xffff
+                val commentLength = cd.getShort(p + 32).toInt() and 0xffff
+                if (nameLength == nameBytes.size
+                    && (0 until nameLength).all { cd.get(p + 46 + it) == nameBytes[it] }) {
+                    val localOffset = cd.getInt(p + 42).toLong() and 0xffffffffL
+                    if (localOffset == 0xffffffffL) return -1L
+
+                    val local = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN)
+                    file.channel.read(local, localOffset)
+                    if (local.getInt(0) != 0x04034b50) return -1L
+                    val localNameLength = local.getShort(26).toInt() and 0xffff
+                    val localExtraLength = local.getShort(28).toInt() and 0xffff
+                    return localOffset + 30 + localNameLength + localExtraLength
+                }
+                p += 46 + nameLength + extraLength + commentLength
+            }
+        }
+        return -1L
+    }
+
+    private fun renderScript(context: Context, starter: String): ByteArray {
+        val script = context.resources.openRawResource(R.raw.start).bufferedReader().use { it.readText() }
+        return script
+            .replace("%%%STARTER_PATH%%%", starter)
+            .replace("%%%APK_PATH%%%", context.applicationInfo.sourceDir)
+            .toByteArray()
+    }
+
+    /**
+     * Writes the script to [out], unless it already has the same content.
+     */
     private fun writeScript(context: Context, out: File, starter: String): String {
-        if (!out.exists()) {
-            out.createNewFile()
+        val script = renderScript(context, starter)
+        if (out.length() == script.size.toLong() && out.readBytes().contentEquals(script)) {
+            logd("$out is up to date")
+            return out.absolutePath
         }
-        val `is` = BufferedReader(InputStreamReader(context.resources.openRawResource(R.raw.start)))
-        val os = PrintWriter(FileWriter(out))
-        var line: String?
-        while (`is`.readLine().also { line = it } != null) {
-            os.println(line!!.replace("%%%STARTER_PATH%%%", starter))
+        FileOutputStream(out).use {
+            it.write(script)
         }
-        os.flush()
-        os.close()
         return out.absolutePath
     }
 }
@@ -14,11 +14,10 @@ import kotlinx.coroutines.launch
 import moe.shizuku.manager.AppConstants.EXTRA
 import moe.shizuku.manager.BuildConfig
 import moe.shizuku.manager.R
-import moe.shizuku.manager.ShizukuSettings
 import moe.shizuku.manager.adb.AdbClient
+import moe.shizuku.manager.adb.AdbConnectionManager
 import moe.shizuku.manager.adb.AdbKey
 import moe.shizuku.manager.adb.AdbKeyException
-import moe.shizuku.manager.adb.PreferenceAdbKeyStore
 import moe.shizuku.manager.app.AppBarActivity
 import moe.shizuku.manager.application
 import moe.shizuku.manager.databinding.StarterActivityBinding
@@ -173,7 +172,7 @@ private class ViewModel(context: Context, root: Boolean, host: String?, port: In
 
         GlobalScope.launch(Dispatchers.IO) {
             val key = try {
-                AdbKey(PreferenceAdbKeyStore(ShizukuSettings.getPreferences()), "shizuku")
+                AdbKey.getShared()
             } catch (e: Throwable) {
                 e.printStackTrace()
                 sb.append('\n').append(Log.getStackTraceString(e))
@@ -182,13 +181,18 @@ private class ViewModel(context: Context, root: Boolean, host: String?, port: In
                 return@launch
             }
 
-            AdbClient(host, port, key).runCatching {
-                connect()
-                shellCommand(Starter.sdcardCommand) {
-                    sb.append(String(it))
-                    postResult()
+            runCatching {
+                AdbConnectionManager.use(application, host, port, key) { client ->
+                    val command = try {
+                        Starter.pushAdbFiles(application, client)
+                    } catch (e: Throwable) {
+                        e.printStackTrace()
+                        sb.append("warn: can't push files with adb (").append(e.message).append("), use files on sdcard instead").append('\n')
+                        postResult()
+                        Starter.sdcardCommand
+                    }
+                    runAdbCommand(client, command)
                 }
-                close()
             }.onFailure {
                 it.printStackTrace()
 
@@ -197,8 +201,8 @@ private class ViewModel(context: Context, root: Boolean, host: String?, port: In
             }
 
             /* Adb on MIUI Android 11 has no permission to access Android/data.
-               Before MIUI Android 12, we can temporarily use /data/user_de.
-               After that, is better to implement "adb push" and push files directly to /data/local/tmp.
+               Files are pushed to /data/local/tmp with "sync:" first, this is only reached if
+               that fails. Before MIUI Android 12, we can temporarily use /data/user_de.
              */
             if (sb.contains("/Android/data/${BuildConfig.APPLICATION_ID}/start.sh: Permission denied")) {
                 sb.append('\n')
@@ -209,13 +213,10 @@ private class ViewModel(context: Context, root: Boolean, host: String?, port: In
 
                 Starter.writeDataFiles(application, true)
 
-                AdbClient(host, port, key).runCatching {
-                    connect()
-                    shellCommand(Starter.dataCommand) {
-                        sb.append(String(it))
-                        postResult()
+                runCatching {
+                    AdbConnectionManager.use(application, host, port, key) { client ->
+                        runAdbCommand(client, Starter.dataCommand)
                     }
-                    close()
                 }.onFailure {
                     it.printStackTrace()
 
@@ -225,4 +226,17 @@ private class ViewModel(context: Context, root: Boolean, host: String?, port: In
             }
         }
     }
+
+    private fun runAdbCommand(client: AdbClient, command: String) {
+        val exitCode = client.openShell(command).use { shell ->
+            shell.waitFor({
+                sb.append(String(it))
+                postResult()
+            })
+        }
+        if (exitCode != null && exitCode != 0) {
+            sb.append('\n').append("Send this to developer may help solve the problem.")
+            postResult()
+        }
+    }
 }
@@ -2,42 +2,26 @@
 #include <fcntl.h>
 #include <unistd.h>
 #include <cstdio>
+#include <climits>
+#include <cstdint>
+#include "misc.h"
 
 namespace cgroup {
 
-    static ssize_t fdgets(char *buf, const size_t size, int fd) {
-        ssize_t len = 0;
-        buf[0] = '\0';
-        while (len < size - 1) {
-            ssize_t ret = read(fd, buf + len, 1);
-            if (ret < 0)
-                return -1;
-            if (ret == 0)
-                break;
-            if (buf[len] == '\0' || buf[len++] == '\n') {
-                break;
-            }
-        }
-        buf[len] = '\0';
-        buf[size - 1] = '\0';
-        return len;
-    }
-
     int get_cgroup(int pid, int* cuid, int *cpid) {
-        char buf[PATH_MAX];
-        snprintf(buf, PATH_MAX, "/proc/%d/cgroup", pid);
+        char path[64];
+        snprintf(path, sizeof(path), "/proc/%d/cgroup", pid);
 
-        int fd = open(buf, O_RDONLY);
-        if (fd == -1)
+        char buf[PATH_MAX];
+        if (read_file(path, buf, sizeof(buf)) <= 0)
             return -1;
 
-        while (fdgets(buf, PATH_MAX, fd) > 0) {
-            if (sscanf(buf, "%*d:cpuacct:/uid_%d/pid_%d", cuid, cpid) == 2) {
-                close(fd);
+        char *saveptr = nullptr;
+        for (char *line = strtok_r(buf, "\n", &saveptr); line; line = strtok_r(nullptr, "\n", &saveptr)) {
+            if (sscanf(line, "%*d:cpuacct:/uid_%d/pid_%d", cuid, cpid) == 2) {
                 return 0;
             }
         }
-        close(fd);
         return -1;
     }
 
@@ -9,52 +9,80 @@
 #include <cstdlib>
 #include <sched.h>
 #include <cctype>
+#include <cerrno>
 #include "misc.h"
 
-ssize_t fdgets(char *buf, const size_t size, int fd) {
-    ssize_t len = 0;
-    buf[0] = '\0';
+ssize_t read_file(const char *path, char *buf, size_t size) {
+    int fd = open(path, O_RDONLY | O_CLOEXEC);
+    if (fd == -1)
+        return -1;
+
+    size_t len = 0;
     while (len < size - 1) {
-        ssize_t ret = read(fd, buf + len, 1);
-        if (ret < 0)
+        ssize_t ret = read(fd, buf + len, size - 1 - len);
+        if (ret < 0) {
+            if (errno == EINTR) continue;
+            close(fd);
             return -1;
+        }
         if (ret == 0)
             break;
-        if (buf[len] == '\0' || buf[len++] == '\n') {
-            buf[len] = '\0';
-            break;
-        }
+        len += ret;
     }
+    close(fd);
     buf[len] = '\0';
-    buf[size - 1] = '\0';
     return len;
 }
 
 int get_proc_name(int pid, char *name, size_t _size) {
-    int fd;
-    ssize_t __size;
-
+    char path[64];
     char buf[1024];
-    snprintf(buf, sizeof(buf), "/proc/%d/cmdline", pid);
-    if (access(buf, R_OK) == -1 || (fd = open(buf, O_RDONLY)) == -1)
+
+    // cmdline is NUL separated, the first string is the name, read it in one go
+    snprintf(path, sizeof(path), "/proc/%d/cmdline", pid);
+    ssize_t len = read_file(path, buf, sizeof(buf));
+    if (len == -1)
         return 1;
-    if ((__size = fdgets(buf, sizeof(buf), fd)) == 0) {
-        snprintf(buf, sizeof(buf), "/proc/%d/comm", pid);
-        close(fd);
-        if (access(buf, R_OK) == -1 || (fd = open(buf, O_RDONLY)) == -1)
+
+    if (len == 0 || buf[0] == '\0') {
+        snprintf(path, sizeof(path), "/proc/%d/comm", pid);
+        if (read_file(path, buf, sizeof(buf)) == -1)
             return 1;
-        __size = fdgets(buf, sizeof(buf), fd);
+        buf[strcspn(buf, "\n")] = '\0';
     }
-    close(fd);
 
-    if (__size < _size) {
-        strncpy(name, buf, static_cast<size_t>(__size));
-        name[__size] = '\0';
-    } else {
-        strncpy(name, buf, _size);
-        name[_size] = '\0';
+    strncpy(name, buf, _size - 1);
+    name[_size - 1] = '\0';
+    return 0;
+}
+
+int get_proc_start_time(int pid, unsigned long long *start_time) {
+    char path[64];
+    char buf[1024];
+
+    snprintf(path, sizeof(path), "/proc/%d/stat", pid);
+    if (read_file(path, buf, sizeof(buf)) <= 0)
+        return 1;
+
+    // comm may contain spaces and ")", fields after the last ")" start from "state" (3rd)
+    char *p = strrchr(buf, ')');
+    if (!p || p[1] != ' ')
+        return 1;
+
+    // starttime is the 22nd field, skip the 19 fields from "state"
+    p += 2;
+    for (int i = 0; i < 19; ++i) {
+        p = strchr(p, ' ');
+        if (!p)
+            return 1;
+        p++;
     }
 
+    char *end;
+    errno = 0;
+    *start_time = strtoull(p, &end, 10);
+    if (end == p || errno != 0)
+        return 1;
     return 0;
 }
 
@@ -4,7 +4,9 @@
 int copyfile(const char *src_path, const char *dst_path);
 uintptr_t memsearch(const uintptr_t start, const uintptr_t end, const void *value, size_t size);
 int switch_mnt_ns(int pid);
+ssize_t read_file(const char *path, char *buf, size_t size);
 int get_proc_name(int pid, char *name, size_t _size);
+int get_proc_start_time(int pid, unsigned long long *start_time);
 
 using foreach_proc_function = void(pid_t);
 void foreach_proc(foreach_proc_function *func);
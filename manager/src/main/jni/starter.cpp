@@ -10,10 +10,16 @@
 #include <cerrno>
 #include <string_view>
 #include <termios.h>
+#include <csignal>
+#include <sys/syscall.h>
+#include <sys/wait.h>
+#include <sys/file.h>
+#include <fcntl.h>
 #include "android.h"
 #include "misc.h"
 #include "selinux.h"
 #include "cgroup.h"
+#include "trace.h"
 #include "logging.h"
 
 #ifdef DEBUG
@@ -30,9 +36,28 @@
 #define EXIT_FATAL_KILL 9
 #define EXIT_FATAL_BINDER_BLOCKED_BY_SELINUX 10
 
+// ServerConstants.MANAGER_APP_NOT_FOUND
+#define EXIT_SERVER_MANAGER_APP_NOT_FOUND 50
+
+#define SUPERVISOR_BACKOFF_MIN 500LL
+#define SUPERVISOR_BACKOFF_MAX 30000LL
+#define SUPERVISOR_STABLE_TIME 60000LL
+#define SUPERVISOR_MAX_RESTARTS 5
+
 #define PACKAGE_NAME "moe.shizuku.privileged.api"
 #define SERVER_NAME "shizuku_server"
 #define SERVER_CLASS_PATH "rikka.shizuku.server.ShizukuService"
+#define SERVER_PID_FILE "/data/local/tmp/shizuku/server.pid"
+#define SUPERVISOR_LOCK_FILE "/data/local/tmp/shizuku/supervisor.lock"
+#define SUPERVISOR_UPGRADE_FILE "/data/local/tmp/shizuku/upgrade"
+
+#ifndef __NR_pidfd_open
+#define __NR_pidfd_open 434
+#endif
+
+#ifndef __NR_pidfd_send_signal
+#define __NR_pidfd_send_signal 424
+#endif
 
 #if defined(__arm__)
 #define ABI "armeabi-v7a"
@@ -112,10 +137,278 @@ v_current = (uintptr_t) v + v_size - sizeof(char *); \
     }
 }
 
+static long long boottime_ms() {
+    struct timespec ts{};
+    clock_gettime(CLOCK_BOOTTIME, &ts);
+    return ts.tv_sec * 1000LL + ts.tv_nsec / 1000000;
+}
+
+/*
+ * The server is replaced or stopped by a new starter if the pid file no longer has its pid.
+ */
+static bool is_server_owning_pid_file(pid_t pid) {
+    char buf[128];
+    pid_t file_pid;
+    if (read_file(SERVER_PID_FILE, buf, sizeof(buf)) <= 0) return false;
+    if (sscanf(buf, "%d", &file_pid) != 1) return false;
+    return file_pid == pid;
+}
+
+/*
+ * Takes the supervisor lock and writes our pid into it. The lock is held until the supervisor
+ * exits, so a new starter can tell whether the pid in the file is a live supervisor.
+ */
+static void lock_supervisor() {
+    int fd = open(SUPERVISOR_LOCK_FILE, O_RDWR | O_CREAT | O_CLOEXEC, 0644);
+    if (fd == -1) {
+        PLOGE("open %s", SUPERVISOR_LOCK_FILE);
+        return;
+    }
+    while (flock(fd, LOCK_EX) == -1) {
+        if (errno != EINTR) {
+            PLOGE("flock %s", SUPERVISOR_LOCK_FILE);
+            close(fd);
+            return;
+        }
+    }
+
+    char buf[32];
+    int len = snprintf(buf, sizeof(buf), "%d\n", getpid());
+    if (ftruncate(fd, 0) == -1 || pwrite(fd, buf, len, 0) != len) {
+        PLOGE("write %s", SUPERVISOR_LOCK_FILE);
+    }
+    // Keep fd open, the lock is released when the supervisor exits
+}
+
+/*
+ * Kills the supervisor of the previous server, so that it can't restart the server once the new
+ * one is started.
+ */
+static void kill_supervisor() {
+    int fd = open(SUPERVISOR_LOCK_FILE, O_RDWR | O_CLOEXEC);
+    if (fd == -1) return;
+
+    if (flock(fd, LOCK_EX | LOCK_NB) == 0) {
+        // No supervisor
+        close(fd);
+        return;
+    }
+    if (errno != EWOULDBLOCK) {
+        close(fd);
+        return;
+    }
+
+    char buf[32]{};
+    pid_t pid;
+    if (pread(fd, buf, sizeof(buf) - 1, 0) > 0 && sscanf(buf, "%d", &pid) == 1 && pid > 0 && pid != getpid()) {
+        if (kill(pid, SIGKILL) == 0) {
+            printf("info: killed supervisor %d\n", pid);
+            fflush(stdout);
+
+            // The lock is released once the supervisor is gone
+            while (flock(fd, LOCK_EX) == -1 && errno == EINTR) {}
+        } else if (errno == EPERM) {
+            perrorf("fatal: can't kill supervisor %d, please try to stop existing Shizuku from app first.\n", pid);
+            exit(EXIT_FATAL_KILL);
+        }
+    }
+    close(fd);
+}
+
+static volatile sig_atomic_t upgrade_requested = 0;
+
+static void on_upgrade_request(int) {
+    upgrade_requested = 1;
+}
+
+/*
+ * Reads the apk path the server asked to be upgraded to. The request is only taken from the
+ * server this supervisor runs, and only if the apk can be read.
+ */
+static bool read_upgrade_request(pid_t server, char *path, size_t size) {
+    char buf[PATH_MAX + 32];
+    ssize_t len = read_file(SUPERVISOR_UPGRADE_FILE, buf, sizeof(buf));
+    unlink(SUPERVISOR_UPGRADE_FILE);
+    if (len <= 0) return false;
+
+    pid_t pid;
+    int offset = 0;
+    if (sscanf(buf, "%d %n", &pid, &offset) != 1 || offset == 0 || pid != server) {
+        LOGW("supervisor: ignore upgrade request from %d", pid);
+        return false;
+    }
+    char *request_path = trim(buf + offset);
+    if (request_path[0] == '\0' || strlen(request_path) >= size || access(request_path, R_OK) != 0) {
+        LOGW("supervisor: can't upgrade to %s", request_path);
+        return false;
+    }
+    strcpy(path, request_path);
+    return true;
+}
+
+static pid_t fork_server(const char *path, const char *main_class, const char *process_name) {
+    pid_t pid = fork();
+    if (pid == 0) {
+        run_server(path, main_class, process_name);
+        exit(EXIT_FATAL_APP_PROCESS);
+    }
+    return pid;
+}
+
+static void sleep_ms(long long ms) {
+    struct timespec ts{static_cast<time_t>(ms / 1000), static_cast<long>(ms % 1000 * 1000000)};
+    while (nanosleep(&ts, &ts) == -1 && errno == EINTR) {}
+}
+
+/*
+ * Runs the server in a child process and restarts it with backoff if it crashes.
+ *
+ * Supervision stops when the server exits on its own (exit code 0, or MANAGER_APP_NOT_FOUND),
+ * or when it no longer owns the pid file, which means a new starter killed it or it died before
+ * it was fully started. The time of death and the restart count are passed to the new server in
+ * SHIZUKU_RESTART, so that it can report time-to-recovery.
+ *
+ * When the manager is upgraded, the server writes "<pid> <apk path>" to SUPERVISOR_UPGRADE_FILE
+ * and sends SIGUSR1 (see ShizukuService#upgrade). The server from the new apk is started next to
+ * the running one with SHIZUKU_UPGRADE_FROM, and stops the previous one once it has taken over.
+ * Until then the previous server keeps serving: if the new one dies first, the previous one is
+ * supervised again with its own apk path.
+ *
+ * A new starter kills the supervisor (see kill_supervisor) before the server, and the pid file
+ * is checked again after the backoff, so a server started manually during the backoff is never
+ * followed by a second one from here.
+ */
+[[noreturn]] static void supervise_server(const char *apk_path, const char *main_class, const char *process_name) {
+    long long backoff = SUPERVISOR_BACKOFF_MIN;
+    int restarts = 0;
+    char path[PATH_MAX];
+    char previous_path[PATH_MAX];
+    pid_t previous = 0;
+
+    strlcpy(path, apk_path, sizeof(path));
+
+    lock_supervisor();
+
+    // Without SA_RESTART, so that waitpid returns for the request
+    struct sigaction sa{};
+    sa.sa_handler = on_upgrade_request;
+    sigemptyset(&sa.sa_mask);
+    sigaction(SIGUSR1, &sa, nullptr);
+
+    // Lets the server know it can ask for an upgrade, it checks this is its parent
+    char supervisor_pid[16];
+    snprintf(supervisor_pid, sizeof(supervisor_pid), "%d", getpid());
+    setenv("SHIZUKU_SUPERVISOR", supervisor_pid, true);
+
+    while (true) {
+        upgrade_requested = 0;
+        unlink(SUPERVISOR_UPGRADE_FILE);
+
+        long long started = boottime_ms();
+        pid_t pid = fork_server(path, main_class, process_name);
+        if (pid == -1) {
+            PLOGE("fork");
+            exit(EXIT_FATAL_FORK);
+        }
+
+        int status = 0;
+        while (true) {
+            pid_t exited = waitpid(-1, &status, 0);
+            if (exited == -1) {
+                if (errno != EINTR) {
+                    PLOGE("waitpid");
+                    exit(EXIT_FATAL_FORK);
+                }
+                if (!upgrade_requested) continue;
+                upgrade_requested = 0;
+
+                char upgrade_path[PATH_MAX];
+                if (previous != 0 || !read_upgrade_request(pid, upgrade_path, sizeof(upgrade_path))) continue;
+
+                char from[16];
+                snprintf(from, sizeof(from), "%d", pid);
+                setenv("SHIZUKU_UPGRADE_FROM", from, true);
+                unsetenv("SHIZUKU_RESTART");
+                unsetenv("SHIZUKU_STARTER_TRACE");
+                pid_t next = fork_server(upgrade_path, main_class, process_name);
+                unsetenv("SHIZUKU_UPGRADE_FROM");
+                if (next == -1) {
+                    PLOGE("fork");
+                    continue;
+                }
+
+                LOGI("supervisor: server %d is upgrading to %d from %s", pid, next, upgrade_path);
+                previous = pid;
+                strlcpy(previous_path, path, sizeof(previous_path));
+                strlcpy(path, upgrade_path, sizeof(path));
+                pid = next;
+                started = boottime_ms();
+                continue;
+            }
+
+            if (exited == previous) {
+                LOGI("supervisor: previous server %d exited, upgrade finished", previous);
+                previous = 0;
+                continue;
+            }
+            if (exited != pid) continue;
+
+            if (previous != 0) {
+                LOGW("supervisor: new server %d died before taking over, keep server %d", pid, previous);
+                pid = previous;
+                previous = 0;
+                strlcpy(path, previous_path, sizeof(path));
+                continue;
+            }
+            break;
+        }
+        long long died = boottime_ms();
+
+        if (WIFEXITED(status) && (WEXITSTATUS(status) == 0 || WEXITSTATUS(status) == EXIT_SERVER_MANAGER_APP_NOT_FOUND)) {
+            LOGI("supervisor: server %d exited with %d", pid, WEXITSTATUS(status));
+            exit(EXIT_SUCCESS);
+        }
+        if (!is_server_owning_pid_file(pid)) {
+            LOGI("supervisor: server %d is stopped or replaced", pid);
+            exit(EXIT_SUCCESS);
+        }
+        unlink(SERVER_PID_FILE);
+
+        if (died - started > SUPERVISOR_STABLE_TIME) {
+            backoff = SUPERVISOR_BACKOFF_MIN;
+            restarts = 0;
+        }
+        if (++restarts > SUPERVISOR_MAX_RESTARTS) {
+            LOGE("supervisor: server crashed %d times in a row, give up", SUPERVISOR_MAX_RESTARTS);
+            exit(EXIT_FATAL_APP_PROCESS);
+        }
+
+        if (WIFSIGNALED(status)) {
+            LOGW("supervisor: server %d killed by signal %d, restart in %lld ms", pid, WTERMSIG(status), backoff);
+        } else {
+            LOGW("supervisor: server %d exited with %d, restart in %lld ms", pid, WEXITSTATUS(status), backoff);
+        }
+        sleep_ms(backoff);
+        backoff = backoff * 2 > SUPERVISOR_BACKOFF_MAX ? SUPERVISOR_BACKOFF_MAX : backoff * 2;
+
+        if (access(SERVER_PID_FILE, F_OK) == 0) {
+            LOGI("supervisor: another server has started, exit");
+            exit(EXIT_SUCCESS);
+        }
+
+        char buf[64];
+        snprintf(buf, sizeof(buf), "%lld %d", died, restarts);
+        setenv("SHIZUKU_RESTART", buf, true);
+        unsetenv("SHIZUKU_STARTER_TRACE");
+    }
+}
+
 static void start_server(const char *path, const char *main_class, const char *process_name) {
+    trace::export_env();
+
     if (daemon(false, false) == 0) {
         LOGD("child");
-        run_server(path, main_class, process_name);
+        supervise_server(path, main_class, process_name);
     } else {
         perrorf("fatal: can't fork\n");
         exit(EXIT_FATAL_FORK);
@@ -165,6 +458,150 @@ static int switch_cgroup() {
     return -1;
 }
 
+static bool is_server_name(const char *name) {
+    return strcmp(SERVER_NAME, name) == 0 || strcmp("shizuku_server_legacy", name) == 0;
+}
+
+static void kill_server(pid_t pid, const char *name, int pidfd) {
+    int res;
+    if (pidfd != -1) {
+        res = (int) syscall(__NR_pidfd_send_signal, pidfd, SIGKILL, nullptr, 0);
+    } else {
+        res = kill(pid, SIGKILL);
+    }
+
+    if (res == 0)
+        printf("info: killed %d (%s)\n", pid, name);
+    else if (errno == EPERM) {
+        perrorf("fatal: can't kill %d, please try to stop existing Shizuku from app first.\n", pid);
+        exit(EXIT_FATAL_KILL);
+    } else {
+        printf("warn: failed to kill %d (%s)\n", pid, name);
+    }
+}
+
+/*
+ * The server writes "<pid> <start time>" to SERVER_PID_FILE when it starts. The start time
+ * (from /proc/<pid>/stat) makes sure the pid has not been reused by another process.
+ *
+ * Returns 0 if the pid file is valid, in which case there is no need to scan /proc.
+ */
+static int kill_server_from_pid_file() {
+    char buf[128];
+    if (read_file(SERVER_PID_FILE, buf, sizeof(buf)) <= 0) return -1;
+
+    pid_t pid;
+    unsigned long long start_time, actual_start_time;
+    if (sscanf(buf, "%d %llu", &pid, &start_time) != 2 || pid <= 0) return -1;
+
+    // Hold a pidfd (Linux 5.3+) while checking, so the pid can't be reused before the kill
+    int pidfd = (int) syscall(__NR_pidfd_open, pid, 0);
+    if (pidfd == -1 && errno == ESRCH) {
+        unlink(SERVER_PID_FILE);
+        return 0;
+    }
+
+    char name[1024];
+    if (get_proc_start_time(pid, &actual_start_time) != 0
+        || actual_start_time != start_time
+        || get_proc_name(pid, name, sizeof(name)) != 0
+        || !is_server_name(name)) {
+        // Server has died and the pid is reused
+        if (pidfd != -1) close(pidfd);
+        unlink(SERVER_PID_FILE);
+        return 0;
+    }
+
+    // Unlink first, so that the supervisor of the old server knows it's not a crash
+    unlink(SERVER_PID_FILE);
+    kill_server(pid, name, pidfd);
+    if (pidfd != -1) close(pidfd);
+    return 0;
+}
+
+static void kill_server_from_proc() {
+    foreach_proc([](pid_t pid) {
+        if (pid == getpid()) return;
+
+        char name[1024];
+        if (get_proc_name(pid, name, 1024) != 0) return;
+        if (!is_server_name(name)) return;
+
+        kill_server(pid, name, -1);
+    });
+}
+
+static long long elapsed_ms() {
+    struct timespec ts{};
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000LL + ts.tv_nsec / 1000000;
+}
+
+static char apk_path_buf[PATH_MAX];
+
+static bool find_base_apk(const char *dir, const char *name) {
+    if (strncmp(name, PACKAGE_NAME "-", strlen(PACKAGE_NAME "-")) != 0) return false;
+
+    snprintf(apk_path_buf, PATH_MAX, "%s/%s/base.apk", dir, name);
+    return access(apk_path_buf, R_OK) == 0;
+}
+
+/*
+ * Looks for /data/app/<package>-<random>/base.apk, or
+ * /data/app/~~<random>/<package>-<random>/base.apk on Android 11+.
+ *
+ * packages.list does not record the code path, and /data/app can only be listed by root, but it
+ * costs a few syscalls compared to starting a "pm" process.
+ */
+static char *find_apk_path_from_data_app() {
+    DIR *dir = opendir("/data/app");
+    if (!dir) return nullptr;
+
+    bool found = false;
+    struct dirent *entry;
+    while (!found && (entry = readdir(dir))) {
+        if (entry->d_type != DT_DIR) continue;
+
+        if (strncmp(entry->d_name, "~~", 2) == 0) {
+            char path[PATH_MAX];
+            snprintf(path, PATH_MAX, "/data/app/%s", entry->d_name);
+
+            DIR *subdir = opendir(path);
+            if (!subdir) continue;
+
+            struct dirent *subentry;
+            while ((subentry = readdir(subdir))) {
+                if (subentry->d_type == DT_DIR && find_base_apk(path, subentry->d_name)) {
+                    found = true;
+                    break;
+                }
+            }
+            closedir(subdir);
+        } else {
+            found = find_base_apk("/data/app", entry->d_name);
+        }
+    }
+    closedir(dir);
+    return found ? apk_path_buf : nullptr;
+}
+
+static char *find_apk_path_from_pm() {
+    auto f = popen("pm path " PACKAGE_NAME, "r");
+    if (!f) return nullptr;
+
+    char *apk_path = nullptr;
+    char line[PATH_MAX]{0};
+    if (fgets(line, PATH_MAX, f)) {
+        trim(line);
+        if (strstr(line, "package:") == line) {
+            strncpy(apk_path_buf, line + strlen("package:"), PATH_MAX - 1);
+            apk_path = apk_path_buf;
+        }
+    }
+    pclose(f);
+    return apk_path;
+}
+
 char *context = nullptr;
 
 int starter_main(int argc, char *argv[]) {
@@ -181,12 +618,17 @@ int starter_main(int argc, char *argv[]) {
         exit(EXIT_FATAL_UID);
     }
 
+    trace::begin("se_init");
     se::init();
+    trace::end();
 
     if (uid == 0) {
         chown("/data/local/tmp/shizuku_starter", 2000, 2000);
         se::setfilecon("/data/local/tmp/shizuku_starter", "u:object_r:shell_data_file:s0");
+
+        trace::begin("switch_cgroup");
         switch_cgroup();
+        trace::end();
 
         int sdkLevel = 0;
         char buf[PROP_VALUE_MAX + 1];
@@ -195,11 +637,14 @@ int starter_main(int argc, char *argv[]) {
 
         if (sdkLevel >= 29) {
             printf("info: switching mount namespace to init...\n");
+            trace::begin("switch_mnt_ns");
             switch_mnt_ns(1);
+            trace::end();
         }
     }
 
     if (uid == 0) {
+        trace::begin("check_selinux");
         if (se::getcon(&context) == 0) {
             int res = 0;
 
@@ -213,6 +658,7 @@ int starter_main(int argc, char *argv[]) {
             }
             se::freecon(context);
         }
+        trace::end();
     }
 
     mkdir("/data/local/tmp/shizuku", 0707);
@@ -229,44 +675,42 @@ int starter_main(int argc, char *argv[]) {
     printf("info: killing old process...\n");
     fflush(stdout);
 
-    foreach_proc([](pid_t pid) {
-        if (pid == getpid()) return;
-
-        char name[1024];
-        if (get_proc_name(pid, name, 1024) != 0) return;
-
-        if (strcmp(SERVER_NAME, name) != 0
-            && strcmp("shizuku_server_legacy", name) != 0)
-            return;
+    trace::begin("kill_server");
+    kill_supervisor();
+    if (kill_server_from_pid_file() != 0) {
+        printf("info: no valid pid file, scanning processes...\n");
+        fflush(stdout);
+        kill_server_from_proc();
+    }
+    trace::end();
 
-        if (kill(pid, SIGKILL) == 0)
-            printf("info: killed %d (%s)\n", pid, name);
-        else if (errno == EPERM) {
-            perrorf("fatal: can't kill %d, please try to stop existing Shizuku from app first.\n", pid);
-            exit(EXIT_FATAL_KILL);
-        } else {
-            printf("warn: failed to kill %d (%s)\n", pid, name);
-        }
-    });
+    trace::begin("apk_path");
 
-    if (access(apk_path, R_OK) == 0) {
+    if (apk_path && access(apk_path, R_OK) == 0) {
         printf("info: use apk path from argv\n");
         fflush(stdout);
+    } else if (apk_path) {
+        printf("warn: can't access apk path from argv %s\n", apk_path);
+        fflush(stdout);
+        apk_path = nullptr;
     }
 
     if (!apk_path) {
-        auto f = popen("pm path " PACKAGE_NAME, "r");
-        if (f) {
-            char line[PATH_MAX]{0};
-            fgets(line, PATH_MAX, f);
-            trim(line);
-            if (strstr(line, "package:") == line) {
-                apk_path = line + strlen("package:");
-            }
-            pclose(f);
-        }
+        auto start = elapsed_ms();
+        apk_path = find_apk_path_from_data_app();
+        printf("info: find apk path from /data/app: %s (%lld ms)\n", apk_path ? apk_path : "not found", elapsed_ms() - start);
+        fflush(stdout);
+    }
+
+    if (!apk_path) {
+        auto start = elapsed_ms();
+        apk_path = find_apk_path_from_pm();
+        printf("info: find apk path from pm: %s (%lld ms)\n", apk_path ? apk_path : "not found", elapsed_ms() - start);
+        fflush(stdout);
     }
 
+    trace::end();
+
     if (!apk_path) {
         perrorf("fatal: can't get path of manager\n");
         exit(EXIT_FATAL_PM_PATH);
@@ -0,0 +1,77 @@
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <ctime>
+#include <fcntl.h>
+#include <unistd.h>
+#include "trace.h"
+
+#define MAX_PHASES 16
+
+namespace trace {
+
+    struct Phase {
+        const char *name;
+        long long begin;
+        long long duration;
+    };
+
+    static Phase phases[MAX_PHASES];
+    static int count = 0;
+    static long long start = -1;
+    static int marker_fd = -2;
+
+    static long long now_ms() {
+        struct timespec ts{};
+        clock_gettime(CLOCK_BOOTTIME, &ts);
+        return ts.tv_sec * 1000LL + ts.tv_nsec / 1000000;
+    }
+
+    static void write_marker(const char *buf, size_t len) {
+        if (marker_fd == -2) {
+            marker_fd = open("/sys/kernel/tracing/trace_marker", O_WRONLY | O_CLOEXEC);
+            if (marker_fd == -1) {
+                marker_fd = open("/sys/kernel/debug/tracing/trace_marker", O_WRONLY | O_CLOEXEC);
+            }
+        }
+        if (marker_fd >= 0) {
+            write(marker_fd, buf, len);
+        }
+    }
+
+    void begin(const char *name) {
+        if (start == -1) start = now_ms();
+        if (count >= MAX_PHASES) return;
+
+        char buf[128];
+        int len = snprintf(buf, sizeof(buf), "B|%d|%s", getpid(), name);
+        write_marker(buf, len);
+
+        phases[count].name = name;
+        phases[count].begin = now_ms();
+        phases[count].duration = -1;
+        count++;
+    }
+
+    void end() {
+        if (count == 0 || phases[count - 1].duration != -1) return;
+
+        char buf[32];
+        int len = snprintf(buf, sizeof(buf), "E|%d", getpid());
+        write_marker(buf, len);
+
+        phases[count - 1].duration = now_ms() - phases[count - 1].begin;
+    }
+
+    void export_env() {
+        char buf[1024];
+        size_t len = snprintf(buf, sizeof(buf), "%lld %lld ", start, now_ms());
+        bool first = true;
+        for (int i = 0; i < count && len < sizeof(buf); ++i) {
+            if (phases[i].duration == -1) continue;
+            len += snprintf(buf + len, sizeof(buf) - len, "%s%s:%lld", first ? "" : ",", phases[i].name, phases[i].duration);
+            first = false;
+        }
+        setenv("SHIZUKU_STARTER_TRACE", buf, true);
+    }
+}
@@ -0,0 +1,20 @@
+#ifndef TRACE_H
+#define TRACE_H
+
+/*
+ * Startup phase markers, written to trace_marker in the same format as ATRACE so they show up
+ * in systrace/perfetto, and recorded so that the server can put them into its startup report.
+ */
+namespace trace {
+    void begin(const char *name);
+    void end();
+
+    /*
+     * Passes the recorded phases to the server through the SHIZUKU_STARTER_TRACE environment
+     * variable, as "<begin> <exec> <name>:<duration>,...". Times are CLOCK_BOOTTIME milliseconds,
+     * same as SystemClock.elapsedRealtime().
+     */
+    void export_env();
+}
+
+#endif // TRACE_H
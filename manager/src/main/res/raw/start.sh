@@ -2,6 +2,7 @@
 
 SOURCE_PATH="%%%STARTER_PATH%%%"
 STARTER_PATH="/data/local/tmp/shizuku_starter"
+APK_PATH="%%%APK_PATH%%%"
 
 echo "info: start.sh begin"
 
@@ -19,6 +20,8 @@ broken_tmp() {
 if [ -f "$SOURCE_PATH" ]; then
     echo "info: attempt to copy starter from $SOURCE_PATH to $STARTER_PATH"
     rm -f $STARTER_PATH
+    # The stamp is for the starter pushed by the manager, it's not that one anymore
+    rm -f "$STARTER_PATH.stamp"
 
     cp "$SOURCE_PATH" $STARTER_PATH
     res=$?
@@ -37,6 +40,10 @@ if [ -f "$SOURCE_PATH" ]; then
     chgrp 2000 $STARTER_PATH
 fi
 
+if [ -z "$1" ] && [ -f "$APK_PATH" ]; then
+  set -- "--apk=$APK_PATH"
+fi
+
 if [ -f $STARTER_PATH ]; then
   echo "info: exec $STARTER_PATH"
     $STARTER_PATH "$1"
@@ -46,6 +53,8 @@ if [ -f $STARTER_PATH ]; then
     else
         echo "info: shizuku_starter exit with 0"
     fi
+    exit $result
 else
     echo "Starter file not exist, please open Shizuku and try again."
+    exit 1
 fi
@@ -0,0 +1,205 @@
+package moe.shizuku.manager.adb
+
+import moe.shizuku.manager.adb.AdbProtocol.A_CLSE
+import moe.shizuku.manager.adb.AdbProtocol.A_MAXDATA
+import moe.shizuku.manager.adb.AdbProtocol.A_OKAY
+import moe.shizuku.manager.adb.AdbProtocol.A_OPEN
+import moe.shizuku.manager.adb.AdbProtocol.A_WRTE
+import moe.shizuku.manager.adb.AdbProtocol.FEATURE_DELAYED_ACK
+import moe.shizuku.manager.adb.AdbProtocol.INITIAL_DELAYED_ACK_BYTES
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.Collections
+import java.util.Random
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.CRC32
+import kotlin.concurrent.thread
+
+/**
+ * Long transfers, many connections and many streams against [FakeAdbd]. These take a few seconds
+ * each, throughput is printed for comparison between changes.
+ */
+class AdbClientStressTest {
+
+    @Test(timeout = 120_000)
+    fun stream100MB() {
+        val size = 100L * 1024 * 1024
+        val chunk = ByteArray(A_MAXDATA).also { Random(1).nextBytes(it) }
+        val expectedCrc = CRC32().apply { repeat((size / chunk.size).toInt()) { update(chunk) } }.value
+
+        FakeAdbd(features = setOf(FEATURE_DELAYED_ACK)).use { adbd ->
+            val deviceCrc = AtomicLong()
+            adbd.start {
+                handshake()
+                val stream = accept("sink:", 100, acked = INITIAL_DELAYED_ACK_BYTES)
+
+                // Host to device
+                val crc = CRC32()
+                var received = 0L
+                while (received < size) {
+                    val data = stream.readWrite()
+                    crc.update(data)
+                    received += data.size
+                }
+                assertEquals(size, received)
+                deviceCrc.set(crc.value)
+
+                // Device to host, within the window the host gives
+                var window = stream.hostWindow.toLong()
+                var sent = 0L
+                while (sent < size) {
+                    while (window < chunk.size) {
+                        val okay = read()
+                        assertEquals(A_OKAY, okay.command)
+                        window += ByteBuffer.wrap(okay.data!!).order(ByteOrder.LITTLE_ENDIAN).int
+                    }
+                    stream.write(chunk)
+                    window -= chunk.size
+                    sent += chunk.size
+                }
+                assertEquals(A_CLSE, readSkipOkay().command)
+            }
+
+            adbd.connect().use { client ->
+                val stream = client.openStream("sink:")
+
+                var start = System.nanoTime()
+                repeat((size / chunk.size).toInt()) { stream.write(chunk) }
+                printThroughput("host to device", size, start)
+
+                start = System.nanoTime()
+                val crc = CRC32()
+                var received = 0L
+                while (received < size) {
+                    val data = stream.read()!!
+                    crc.update(data)
+                    received += data.size
+                }
+                printThroughput("device to host", size, start)
+                assertEquals(expectedCrc, crc.value)
+
+                stream.close()
+                adbd.join()
+                assertEquals(expectedCrc, deviceCrc.get())
+            }
+        }
+    }
+
+    @Test(timeout = 120_000)
+    fun sequentialConnects() {
+        val count = 1000
+        val readers = ArrayList<String>()
+        val start = System.nanoTime()
+        repeat(count) { i ->
+            FakeAdbd().use { adbd ->
+                adbd.start {
+                    handshakeAuth(TestAdbKey.publicKey)
+                    val stream = accept("shell:echo $i", 100)
+                    stream.write("$i\n".toByteArray())
+                    stream.close()
+                    assertEquals(A_CLSE, readSkipOkay().command)
+                }
+
+                adbd.connect().use { client ->
+                    val output = StringBuilder()
+                    client.shellCommand("echo $i") { output.append(String(it)) }
+                    assertEquals("$i\n", output.toString())
+                    adbd.join()
+                }
+                readers.add("AdbClient-127.0.0.1:${adbd.port}")
+            }
+        }
+        println("$count connects: ${(System.nanoTime() - start) / count / 1000} us each")
+
+        // Reader threads must be gone once the clients are closed
+        val alive = Thread.getAllStackTraces().keys.filter { it.isAlive && readers.contains(it.name) }
+        assertTrue("reader threads still alive: $alive", alive.isEmpty())
+    }
+
+    @Test(timeout = 120_000)
+    fun concurrentStreams() {
+        val count = 64
+        val size = 32 * 1024
+        val chunkSize = 4096
+
+        FakeAdbd(latency = 1).use { adbd ->
+            adbd.start {
+                handshake()
+
+                // Echoes everything back, in whatever order the host interleaves the streams
+                val streams = HashMap<Int, FakeAdbd.Stream>()
+                var nextId = 1000
+                var closed = 0
+                while (closed < count) {
+                    val message = read()
+                    when (message.command) {
+                        A_OPEN -> {
+                            val stream = accept(message, nextId++)
+                            streams[stream.hostId] = stream
+                        }
+                        A_WRTE -> {
+                            val stream = streams[message.arg0]!!
+                            assertEquals(stream.id, message.arg1)
+                            stream.okay()
+                            stream.write(message.data!!)
+                        }
+                        A_OKAY -> {
+                        }
+                        A_CLSE -> {
+                            assertNotNull(streams.remove(message.arg0))
+                            closed++
+                        }
+                        else -> fail("unexpected ${message.toStringShort()}")
+                    }
+                }
+                assertTrue(streams.isEmpty())
+            }
+
+            adbd.connect().use { client ->
+                val errors = Collections.synchronizedList(ArrayList<Throwable>())
+                val start = System.nanoTime()
+                val threads = (0 until count).map { i ->
+                    thread(name = "stream-$i") {
+                        try {
+                            val data = ByteArray(size).also { Random(i.toLong()).nextBytes(it) }
+                            client.openStream("echo:$i").use { stream ->
+                                for (offset in 0 until size step chunkSize) {
+                                    stream.write(data.copyOfRange(offset, offset + chunkSize))
+                                }
+                                val received = ByteArray(size)
+                                var position = 0
+                                while (position < size) {
+                                    val chunk = stream.read()!!
+                                    System.arraycopy(chunk, 0, received, position, chunk.size)
+                                    position += chunk.size
+                                }
+                                assertArrayEquals(data, received)
+                            }
+                        } catch (e: Throwable) {
+                            errors.add(e)
+                        }
+                    }
+                }
+                threads.forEach { it.join() }
+                printThroughput("$count streams, 1 ms latency", count.toLong() * size * 2, start)
+
+                errors.firstOrNull()?.let { throw it }
+                assertEquals(count, client.openedStreams)
+                adbd.join()
+                assertTrue(client.isAlive)
+            }
+        }
+    }
+
+    private fun printThroughput(name: String, bytes: Long, start: Long) {
+        val ms = ((System.nanoTime() - start) / 1_000_000).coerceAtLeast(1)
+        println("$name: ${bytes / 1024 / 1024} MB in $ms ms, ${bytes * 1000 / 1024 / 1024 / ms} MB/s")
+    }
+}
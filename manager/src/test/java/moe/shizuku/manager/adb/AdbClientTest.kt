@@ -0,0 +1,281 @@
+package moe.shizuku.manager.adb
+
+import moe.shizuku.manager.adb.AdbProtocol.A_CLSE
+import moe.shizuku.manager.adb.AdbProtocol.A_MAXDATA
+import moe.shizuku.manager.adb.AdbProtocol.A_MAXDATA_LEGACY
+import moe.shizuku.manager.adb.AdbProtocol.A_OKAY
+import moe.shizuku.manager.adb.AdbProtocol.A_OPEN
+import moe.shizuku.manager.adb.AdbProtocol.A_VERSION
+import moe.shizuku.manager.adb.AdbProtocol.A_VERSION_MIN
+import moe.shizuku.manager.adb.AdbProtocol.A_WRTE
+import moe.shizuku.manager.adb.AdbProtocol.FEATURE_DELAYED_ACK
+import moe.shizuku.manager.adb.AdbProtocol.FEATURE_SHELL_V2
+import moe.shizuku.manager.adb.AdbProtocol.FEATURE_STAT_V2
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.mockito.Mockito
+import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+class AdbClientTest {
+
+    @Test(timeout = 10_000)
+    fun connect() {
+        FakeAdbd(maxPayload = A_MAXDATA_LEGACY, features = setOf(FEATURE_SHELL_V2, "cmd")).use { adbd ->
+            var cnxn: AdbMessage? = null
+            adbd.start {
+                cnxn = handshake()
+            }
+
+            adbd.connect().use { client ->
+                adbd.join()
+                assertTrue(client.isAlive)
+                assertEquals(A_MAXDATA_LEGACY, client.maxPayload)
+                assertEquals(setOf(FEATURE_SHELL_V2, "cmd"), client.features)
+            }
+
+            val message = cnxn!!
+            assertEquals(A_VERSION, message.arg0)
+            assertEquals(A_MAXDATA, message.arg1)
+            val banner = String(message.data!!).trimEnd('\u0000')
+            assertTrue(banner, banner.startsWith("host::features="))
+            assertEquals(
+                setOf(FEATURE_SHELL_V2, FEATURE_DELAYED_ACK, FEATURE_STAT_V2),
+                banner.removePrefix("host::features=").split(',').toSet()
+            )
+        }
+    }
+
+    @Test(timeout = 10_000)
+    fun authSignature() {
+        FakeAdbd(features = setOf(FEATURE_SHELL_V2)).use { adbd ->
+            var publicKey: ByteArray? = null
+            adbd.start {
+                publicKey = handshakeAuth(TestAdbKey.publicKey)
+            }
+
+            val key = TestAdbKey.mock()
+            AdbClient("127.0.0.1", adbd.port, key).use { client ->
+                client.connect()
+                adbd.join()
+                assertTrue(client.isAlive)
+                assertEquals(setOf(FEATURE_SHELL_V2), client.features)
+            }
+            assertNull(publicKey)
+            Mockito.verify(key).sign(Mockito.any())
+            Mockito.verify(key, Mockito.never()).adbPublicKey
+        }
+    }
+
+    @Test(timeout = 10_000)
+    fun authPublicKey() {
+        FakeAdbd().use { adbd ->
+            var publicKey: ByteArray? = null
+            adbd.start {
+                publicKey = handshakeAuth(TestAdbKey.publicKey, trusted = false)
+            }
+
+            adbd.connect().use { client ->
+                adbd.join()
+                assertTrue(client.isAlive)
+            }
+            assertArrayEquals(TestAdbKey.adbPublicKey, publicKey)
+        }
+    }
+
+    @Test(timeout = 10_000)
+    fun tls() {
+        FakeAdbd(features = setOf(FEATURE_SHELL_V2)).use { adbd ->
+            var protocol: String? = null
+            adbd.start {
+                protocol = handshakeTls(TestAdbKey.sslContext).session.protocol
+                val stream = accept("shell:echo", 100)
+                assertEquals("ping", String(stream.readWrite()))
+                stream.write("pong".toByteArray())
+                stream.close()
+                assertEquals(A_CLSE, readSkipOkay().command)
+            }
+
+            adbd.connect().use { client ->
+                assertEquals(setOf(FEATURE_SHELL_V2), client.features)
+                val stream = client.openStream("shell:echo")
+                stream.write("ping".toByteArray())
+                assertEquals("pong", String(stream.read()!!))
+                assertNull(stream.read())
+                adbd.join()
+            }
+            assertEquals("TLSv1.3", protocol)
+        }
+    }
+
+    @Test(timeout = 10_000)
+    fun tlsNotSupported() {
+        FakeAdbd().use { adbd ->
+            adbd.start {
+                readSkipOkay()
+                write(AdbProtocol.A_STLS, AdbProtocol.A_STLS_VERSION, 0)
+            }
+
+            AdbClient("127.0.0.1", adbd.port, TestAdbKey.adbKey).use { client ->
+                client.tlsSupported = false
+                assertThrows(IllegalStateException::class.java) { client.connect() }
+                assertFalse(client.isAlive)
+            }
+            adbd.join()
+        }
+    }
+
+    @Test(timeout = 10_000)
+    fun multiplexStreams() {
+        FakeAdbd().use { adbd ->
+            val allowOkay = CountDownLatch(1)
+            val rejected = CountDownLatch(1)
+            adbd.start {
+                handshake()
+                val one = accept("shell:one", 100)
+                val two = accept("shell:two", 200)
+
+                // Out of order, the host acknowledges in the order it reads
+                two.write("to-two".toByteArray())
+                one.write("to-one".toByteArray())
+                assertMessage(read(), A_OKAY, one.hostId, 100)
+                assertMessage(read(), A_OKAY, two.hostId, 200)
+
+                // Without delayed ack, the second write waits for the A_OKAY of the first
+                assertEquals("a", String(one.readWrite(ack = false)))
+                allowOkay.await()
+                one.okay()
+                assertEquals("b", String(one.readWrite()))
+
+                one.close()
+                assertMessage(read(), A_CLSE, one.hostId, 100)
+
+                two.write("still".toByteArray())
+                assertMessage(read(), A_OKAY, two.hostId, 200)
+
+                // Streams the host does not know are closed
+                write(A_WRTE, 300, 999, "nobody".toByteArray())
+                assertMessage(read(), A_CLSE, 0, 300)
+                rejected.countDown()
+
+                assertMessage(read(), A_CLSE, two.hostId, 200)
+            }
+
+            adbd.connect().use { client ->
+                val one = client.openStream("shell:one")
+                val two = client.openStream("shell:two")
+                assertNotEquals(one.localId, two.localId)
+                assertEquals(100, one.remoteId)
+                assertEquals(200, two.remoteId)
+                assertEquals(2, client.openedStreams)
+
+                assertEquals("to-one", String(one.read()!!))
+                assertEquals("to-two", String(two.read()!!))
+
+                one.write("a".toByteArray())
+                val written = CountDownLatch(1)
+                thread {
+                    one.write("b".toByteArray())
+                    written.countDown()
+                }
+                assertFalse(written.await(200, TimeUnit.MILLISECONDS))
+                allowOkay.countDown()
+                assertTrue(written.await(5, TimeUnit.SECONDS))
+
+                assertNull(one.read())
+                assertTrue(one.isClosed)
+                assertFalse(two.isClosed)
+
+                assertEquals("still", String(two.read()!!))
+                rejected.await()
+                two.close()
+
+                adbd.join()
+                assertTrue(client.isAlive)
+            }
+        }
+    }
+
+    @Test(timeout = 10_000)
+    fun openStreamRejected() {
+        FakeAdbd().use { adbd ->
+            adbd.start {
+                handshake()
+                val open = read()
+                assertEquals(A_OPEN, open.command)
+                write(A_CLSE, 0, open.arg0)
+            }
+
+            adbd.connect().use { client ->
+                assertThrows(AdbException::class.java) { client.openStream("no-such-service:") }
+                assertEquals(0, client.openedStreams)
+                adbd.join()
+                assertTrue(client.isAlive)
+            }
+        }
+    }
+
+    @Test(timeout = 10_000)
+    fun checksumSkipped() {
+        FakeAdbd(version = A_VERSION).use { adbd ->
+            adbd.start {
+                // Before the version is agreed on, the host still writes checksums
+                val cnxn = handshake()
+                assertNotEquals(0, cnxn.data_crc32)
+
+                val stream = accept("shell:id", 100)
+                val message = readSkipOkay()
+                assertEquals(A_WRTE, message.command)
+                assertEquals(0, message.data_crc32)
+                stream.okay()
+
+                // The device's A_CNXN and this are written with data_crc32 0
+                stream.write("uid=2000".toByteArray())
+                stream.close()
+                assertEquals(A_CLSE, readSkipOkay().command)
+            }
+
+            adbd.connect().use { client ->
+                val stream = client.openStream("shell:id")
+                stream.write("x".toByteArray())
+                assertEquals("uid=2000", String(stream.read()!!))
+                assertNull(stream.read())
+                adbd.join()
+            }
+        }
+    }
+
+    @Test(timeout = 10_000)
+    fun checksumVerified() {
+        FakeAdbd(version = A_VERSION_MIN).use { adbd ->
+            adbd.start {
+                handshake()
+                val stream = accept("shell:id", 100)
+                stream.readWrite()
+                write(A_WRTE, stream.id, stream.hostId, "uid=2000".toByteArray(), crc32 = 0)
+            }
+
+            adbd.connect().use { client ->
+                val stream = client.openStream("shell:id")
+                stream.write("x".toByteArray())
+                assertThrows(IOException::class.java) { stream.read() }
+                assertFalse(client.isAlive)
+                adbd.join()
+            }
+        }
+    }
+
+    private fun assertMessage(message: AdbMessage, command: Int, arg0: Int, arg1: Int) {
+        assertEquals(message.toStringShort(), command, message.command)
+        assertEquals(message.toStringShort(), arg0, message.arg0)
+        assertEquals(message.toStringShort(), arg1, message.arg1)
+    }
+}
@@ -0,0 +1,97 @@
+package moe.shizuku.manager.adb
+
+import moe.shizuku.manager.adb.AdbProtocol.A_CLSE
+import moe.shizuku.manager.adb.AdbProtocol.FEATURE_SHELL_V2
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class AdbShellTest {
+
+    @Test(timeout = 10_000)
+    fun shellV2() {
+        FakeAdbd(features = setOf(FEATURE_SHELL_V2)).use { adbd ->
+            adbd.start {
+                handshake()
+                val stream = accept("shell,v2,raw:cat; exit 130", 100)
+
+                val stdin = stream.readBuffer(5 + 6)
+                assertEquals(0, stdin.get(0).toInt())
+                assertEquals(6, stdin.getInt(1))
+                assertEquals("input\n", String(stdin.array(), 5, 6))
+
+                val closeStdin = stream.readBuffer(5)
+                assertEquals(4, closeStdin.get(0).toInt())
+                assertEquals(0, closeStdin.getInt(1))
+
+                // Shell packets don't have to align with adb payloads
+                val output = shellPacket(1, "hello".toByteArray()) +
+                        shellPacket(2, "oops".toByteArray()) +
+                        shellPacket(1, " world".toByteArray()) +
+                        shellPacket(3, byteArrayOf(130.toByte()))
+                stream.write(output.copyOfRange(0, 3))
+                stream.write(output.copyOfRange(3, 10))
+                stream.write(output.copyOfRange(10, 11))
+                stream.write(output.copyOfRange(11, output.size))
+
+                stream.close()
+                assertEquals(A_CLSE, readSkipOkay().command)
+            }
+
+            adbd.connect().use { client ->
+                client.openShell("cat; exit 130").use { shell ->
+                    assertTrue(shell.isV2)
+                    shell.writeStdin("input\n".toByteArray())
+                    shell.closeStdin()
+
+                    val stdout = ByteArrayOutputStream()
+                    val stderr = ByteArrayOutputStream()
+                    assertEquals(130, shell.waitFor({ stdout.write(it) }, { stderr.write(it) }))
+                    assertEquals(130, shell.exitCode)
+                    assertEquals("hello world", stdout.toString())
+                    assertEquals("oops", stderr.toString())
+                }
+                adbd.join()
+            }
+        }
+    }
+
+    @Test(timeout = 10_000)
+    fun shellV1() {
+        FakeAdbd().use { adbd ->
+            adbd.start {
+                handshake()
+                val stream = accept("shell:ls", 100)
+                stream.write("a\n".toByteArray())
+                stream.write("b\n".toByteArray())
+                stream.close()
+                assertEquals(A_CLSE, readSkipOkay().command)
+            }
+
+            adbd.connect().use { client ->
+                client.openShell("ls").use { shell ->
+                    assertFalse(shell.isV2)
+
+                    val stdout = ByteArrayOutputStream()
+                    assertNull(shell.waitFor({ stdout.write(it) }))
+                    assertNull(shell.exitCode)
+                    assertEquals("a\nb\n", stdout.toString())
+                }
+                adbd.join()
+            }
+        }
+    }
+
+    private fun shellPacket(id: Int, data: ByteArray): ByteArray {
+        return ByteBuffer.allocate(5 + data.size).order(ByteOrder.LITTLE_ENDIAN).apply {
+            put(id.toByte())
+            putInt(data.size)
+            put(data)
+        }.array()
+    }
+}
@@ -0,0 +1,150 @@
+package moe.shizuku.manager.adb
+
+import moe.shizuku.manager.adb.AdbProtocol.A_CLSE
+import moe.shizuku.manager.adb.AdbProtocol.A_MAXDATA_LEGACY
+import moe.shizuku.manager.adb.AdbProtocol.A_OKAY
+import moe.shizuku.manager.adb.AdbProtocol.FEATURE_DELAYED_ACK
+import moe.shizuku.manager.adb.AdbProtocol.INITIAL_DELAYED_ACK_BYTES
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+class AdbStreamTest {
+
+    @Test(timeout = 10_000)
+    fun delayedAckSendWindow() {
+        FakeAdbd(features = setOf(FEATURE_DELAYED_ACK)).use { adbd ->
+            val blocked = CountDownLatch(1)
+            adbd.start {
+                handshake()
+                val stream = accept("shell:cat", 100, acked = 10)
+                assertEquals(INITIAL_DELAYED_ACK_BYTES, stream.hostWindow)
+
+                // 10 bytes allowed, the second write uses up the window
+                assertEquals(6, stream.readWrite(ack = false).size)
+                assertEquals(6, stream.readWrite(ack = false).size)
+                blocked.await()
+
+                stream.okay(8)
+                assertEquals(1, stream.readWrite(ack = false).size)
+
+                stream.close()
+                assertEquals(A_CLSE, read().command)
+            }
+
+            adbd.connect().use { client ->
+                val stream = client.openStream("shell:cat")
+                stream.write(ByteArray(6))
+                stream.write(ByteArray(6))
+
+                val written = CountDownLatch(1)
+                thread {
+                    stream.write(ByteArray(1))
+                    written.countDown()
+                }
+                assertFalse(written.await(200, TimeUnit.MILLISECONDS))
+                blocked.countDown()
+                assertTrue(written.await(5, TimeUnit.SECONDS))
+
+                assertNull(stream.read())
+                adbd.join()
+            }
+        }
+    }
+
+    @Test(timeout = 10_000)
+    fun delayedAckReceiveWindow() {
+        FakeAdbd(features = setOf(FEATURE_DELAYED_ACK)).use { adbd ->
+            adbd.start {
+                handshake()
+                val stream = accept("shell:cat", 100, acked = 10)
+
+                // Written without waiting, the host acknowledges the bytes it has read
+                stream.write(ByteArray(100))
+                stream.write(ByteArray(200))
+                var acked = 0
+                while (acked < 300) {
+                    val okay = read()
+                    assertEquals(A_OKAY, okay.command)
+                    assertEquals(stream.hostId, okay.arg0)
+                    assertEquals(stream.id, okay.arg1)
+                    assertEquals(4, okay.data_length)
+                    acked += ByteBuffer.wrap(okay.data!!).order(ByteOrder.LITTLE_ENDIAN).int
+                }
+                assertEquals(300, acked)
+
+                stream.close()
+                assertEquals(A_CLSE, read().command)
+            }
+
+            adbd.connect().use { client ->
+                val stream = client.openStream("shell:cat")
+                assertEquals(100, stream.read()!!.size)
+                assertEquals(200, stream.read()!!.size)
+                assertNull(stream.read())
+                adbd.join()
+            }
+        }
+    }
+
+    @Test(timeout = 10_000)
+    fun writeEmpty() {
+        FakeAdbd().use { adbd ->
+            adbd.start {
+                handshake()
+                val stream = accept("shell:cat", 100)
+                assertEquals("x", String(stream.readWrite()))
+                stream.close()
+                assertEquals(A_CLSE, readSkipOkay().command)
+            }
+
+            adbd.connect().use { client ->
+                val stream = client.openStream("shell:cat")
+                // Nothing is sent, so the window is still there for the next write
+                stream.write(ByteArray(0))
+                stream.outputStream.write(ByteArray(0))
+                stream.write("x".toByteArray())
+                assertNull(stream.read())
+                adbd.join()
+            }
+        }
+    }
+
+    @Test(timeout = 10_000)
+    fun writeSplitsPayloads() {
+        val data = ByteArray(A_MAXDATA_LEGACY * 2 + 100) { it.toByte() }
+        FakeAdbd(maxPayload = A_MAXDATA_LEGACY).use { adbd ->
+            adbd.start {
+                handshake()
+                val stream = accept("shell:cat", 100)
+                assertEquals(0, stream.hostWindow)
+                assertArrayEquals(data, stream.readBytes(data.size))
+                assertEquals(A_MAXDATA_LEGACY, stream.maxReceived)
+
+                stream.write(data.copyOfRange(0, 10))
+                stream.write(data.copyOfRange(10, data.size))
+                stream.close()
+                assertEquals(A_CLSE, readSkipOkay().command)
+            }
+
+            adbd.connect().use { client ->
+                val stream = client.openStream("shell:cat")
+                stream.outputStream.write(data)
+
+                val received = ByteArrayOutputStream()
+                stream.inputStream.copyTo(received)
+                assertArrayEquals(data, received.toByteArray())
+                adbd.join()
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package moe.shizuku.manager.adb
+
+import moe.shizuku.manager.adb.AdbProtocol.A_CLSE
+import moe.shizuku.manager.adb.AdbProtocol.A_MAXDATA_LEGACY
+import moe.shizuku.manager.adb.AdbProtocol.FEATURE_STAT_V2
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class AdbSyncTest {
+
+    @Test(timeout = 10_000)
+    fun statV2() {
+        FakeAdbd(features = setOf(FEATURE_STAT_V2)).use { adbd ->
+            adbd.start {
+                handshake()
+                val stream = accept("sync:", 100)
+
+                assertEquals("STA2" to "/data/local/tmp/file", stream.readRequest())
+                stream.write(ByteBuffer.allocate(72).order(ByteOrder.LITTLE_ENDIAN).apply {
+                    put("STA2".toByteArray())
+                    putInt(4, 0)
+                    putInt(24, "100755".toInt(8))
+                    putLong(40, 5_000_000_000L)
+                    putLong(56, 1_700_000_000L)
+                }.array())
+
+                assertEquals("STA2" to "/data/local/tmp/missing", stream.readRequest())
+                stream.write(ByteBuffer.allocate(72).order(ByteOrder.LITTLE_ENDIAN).apply {
+                    put("STA2".toByteArray())
+                    putInt(4, 2) // ENOENT
+                }.array())
+
+                assertQuit(stream)
+            }
+
+            adbd.connect().use { client ->
+                client.openSync().use { sync ->
+                    val stat = sync.stat("/data/local/tmp/file")
+                    assertTrue(stat.exists)
+                    assertEquals("100755".toInt(8), stat.mode)
+                    assertEquals(5_000_000_000L, stat.size)
+                    assertEquals(1_700_000_000L, stat.mtime)
+
+                    assertFalse(sync.stat("/data/local/tmp/missing").exists)
+                }
+                adbd.join()
+            }
+        }
+    }
+
+    @Test(timeout = 10_000)
+    fun statV1() {
+        FakeAdbd().use { adbd ->
+            adbd.start {
+                handshake()
+                val stream = accept("sync:", 100)
+
+                assertEquals("STAT" to "/data/local/tmp", stream.readRequest())
+                stream.write(ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN).apply {
+                    put("STAT".toByteArray())
+                    putInt(4, "40771".toInt(8))
+                    putInt(8, 4096)
+                    putInt(12, -1)
+                }.array())
+
+                assertQuit(stream)
+            }
+
+            adbd.connect().use { client ->
+                client.openSync().use { sync ->
+                    val stat = sync.stat("/data/local/tmp")
+                    assertEquals("40771".toInt(8), stat.mode)
+                    assertEquals(4096L, stat.size)
+                    // Unsigned
+                    assertEquals(0xffffffffL, stat.mtime)
+                }
+                adbd.join()
+            }
+        }
+    }
+
+    @Test(timeout = 10_000)
+    fun send() {
+        val content = ByteArray(150 * 1024) { (it * 31).toByte() }
+        FakeAdbd(maxPayload = A_MAXDATA_LEGACY).use { adbd ->
+            adbd.start {
+                handshake()
+                val stream = accept("sync:", 100)
+
+                assertEquals("SEND" to "/data/local/tmp/starter,${"755".toInt(8)}", stream.readRequest())
+                val received = ByteArrayOutputStream()
+                var chunks = 0
+                while (true) {
+                    val header = stream.readBuffer(8)
+                    val id = header.id
+                    val length = header.getInt(4)
+                    if (id == "DONE") {
+                        assertEquals(1_700_000_000, length)
+                        break
+                    }
+                    assertEquals("DATA", id)
+                    assertTrue(length <= 64 * 1024)
+                    received.write(stream.readBytes(length))
+                    chunks++
+                }
+                assertArrayEquals(content, received.toByteArray())
+                assertEquals(3, chunks)
+                assertTrue(stream.maxReceived <= A_MAXDATA_LEGACY)
+                stream.write(syncPacket("OKAY"))
+
+                assertEquals("SEND" to "/system/bin/x,${"644".toInt(8)}", stream.readRequest())
+                assertEquals("DATA" to "hi", stream.readRequest())
+                assertEquals("DONE", stream.readBuffer(8).id)
+                stream.write(syncPacket("FAIL", "Read-only file system"))
+
+                assertQuit(stream)
+            }
+
+            adbd.connect().use { client ->
+                client.openSync().use { sync ->
+                    sync.send("/data/local/tmp/starter", "755".toInt(8), 1_700_000_000L, content.inputStream())
+
+                    val e = assertThrows(AdbException::class.java) {
+                        sync.send("/system/bin/x", "644".toInt(8), 0, "hi".toByteArray().inputStream())
+                    }
+                    assertTrue(e.message, e.message!!.contains("Read-only file system"))
+                }
+                adbd.join()
+            }
+        }
+    }
+
+    @Test(timeout = 10_000)
+    fun recv() {
+        FakeAdbd().use { adbd ->
+            adbd.start {
+                handshake()
+                val stream = accept("sync:", 100)
+
+                // Sync packets don't have to align with adb payloads
+                assertEquals("RECV" to "/data/local/tmp/file", stream.readRequest())
+                val response = syncPacket("DATA", "hello") + syncPacket("DATA", " world") + syncPacket("DONE")
+                stream.write(response.copyOfRange(0, 3))
+                stream.write(response.copyOfRange(3, 16))
+                stream.write(response.copyOfRange(16, response.size))
+
+                assertEquals("RECV" to "/data/local/tmp/missing", stream.readRequest())
+                stream.write(syncPacket("FAIL", "No such file or directory"))
+
+                assertQuit(stream)
+            }
+
+            adbd.connect().use { client ->
+                client.openSync().use { sync ->
+                    val output = ByteArrayOutputStream()
+                    sync.recv("/data/local/tmp/file", output)
+                    assertEquals("hello world", output.toString())
+
+                    val e = assertThrows(AdbException::class.java) {
+                        sync.recv("/data/local/tmp/missing", ByteArrayOutputStream())
+                    }
+                    assertTrue(e.message, e.message!!.contains("No such file or directory"))
+                }
+                adbd.join()
+            }
+        }
+    }
+
+    private val ByteBuffer.id get() = String(array(), 0, 4)
+
+    private fun syncPacket(id: String, data: String = ""): ByteArray {
+        val bytes = data.toByteArray()
+        return ByteBuffer.allocate(8 + bytes.size).order(ByteOrder.LITTLE_ENDIAN).apply {
+            put(id.toByteArray())
+            putInt(bytes.size)
+            put(bytes)
+        }.array()
+    }
+
+    private fun FakeAdbd.Stream.readRequest(): Pair<String, String> {
+        val header = readBuffer(8)
+        return header.id to String(readBytes(header.getInt(4)))
+    }
+
+    private fun FakeAdbd.assertQuit(stream: FakeAdbd.Stream) {
+        assertEquals("QUIT" to "", stream.readRequest())
+        assertEquals(A_CLSE, readSkipOkay().command)
+    }
+}
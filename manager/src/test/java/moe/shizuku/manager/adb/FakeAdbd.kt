@@ -0,0 +1,306 @@
+package moe.shizuku.manager.adb
+
+import moe.shizuku.manager.adb.AdbProtocol.ADB_AUTH_RSAPUBLICKEY
+import moe.shizuku.manager.adb.AdbProtocol.ADB_AUTH_SIGNATURE
+import moe.shizuku.manager.adb.AdbProtocol.ADB_AUTH_TOKEN
+import moe.shizuku.manager.adb.AdbProtocol.A_AUTH
+import moe.shizuku.manager.adb.AdbProtocol.A_CLSE
+import moe.shizuku.manager.adb.AdbProtocol.A_CNXN
+import moe.shizuku.manager.adb.AdbProtocol.A_MAXDATA
+import moe.shizuku.manager.adb.AdbProtocol.A_OKAY
+import moe.shizuku.manager.adb.AdbProtocol.A_OPEN
+import moe.shizuku.manager.adb.AdbProtocol.A_STLS
+import moe.shizuku.manager.adb.AdbProtocol.A_STLS_VERSION
+import moe.shizuku.manager.adb.AdbProtocol.A_VERSION
+import moe.shizuku.manager.adb.AdbProtocol.A_VERSION_SKIP_CHECKSUM
+import moe.shizuku.manager.adb.AdbProtocol.A_WRTE
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.OutputStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.security.PublicKey
+import java.security.SecureRandom
+import javax.net.ssl.SSLContext
+import javax.net.ssl.SSLSocket
+
+/**
+ * The device side of an adb connection on a loopback socket, driven by the test step by step.
+ *
+ * The host's A_CNXN is answered right away with [handshake], or after A_AUTH or A_STLS with
+ * [handshakeAuth] or [handshakeTls]. It writes and verifies checksums unless [version] allows
+ * to skip them.
+ *
+ * @param latency milliseconds to wait before each message the device writes, like a slow link
+ */
+class FakeAdbd(
+    val version: Int = A_VERSION,
+    val maxPayload: Int = A_MAXDATA,
+    val features: Set<String> = emptySet(),
+    val latency: Long = 0
+) : Closeable {
+
+    private val server = ServerSocket(0, 1, InetAddress.getLoopbackAddress())
+    private lateinit var socket: Socket
+    private lateinit var input: DataInputStream
+    private lateinit var output: OutputStream
+
+    private var thread: Thread? = null
+
+    @Volatile
+    private var error: Throwable? = null
+
+    val port get() = server.localPort
+
+    val delayedAck get() = features.contains(AdbProtocol.FEATURE_DELAYED_ACK)
+
+    private val checksum get() = version < A_VERSION_SKIP_CHECKSUM
+
+    /**
+     * Accepts the connection and runs [script] on a new thread. Failures are thrown by [join].
+     */
+    fun start(script: FakeAdbd.() -> Unit) {
+        thread = Thread({
+            try {
+                socket = server.accept()
+                socket.soTimeout = 10_000
+                socket.tcpNoDelay = true
+                input = DataInputStream(socket.getInputStream())
+                output = socket.getOutputStream()
+                script()
+            } catch (e: Throwable) {
+                error = e
+            }
+        }, "FakeAdbd").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    /**
+     * Connects an [AdbClient] with [TestAdbKey] to this device, [start] must have been called.
+     */
+    fun connect(): AdbClient {
+        return AdbClient("127.0.0.1", port, TestAdbKey.adbKey).apply {
+            tlsSupported = true
+            connect()
+        }
+    }
+
+    fun join() {
+        thread?.join(10_000)
+        error?.let { throw it }
+        assertTrue("device script did not finish", thread?.isAlive != true)
+    }
+
+    fun read(): AdbMessage {
+        val header = ByteBuffer.allocate(AdbMessage.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+        input.readFully(header.array())
+        val command = header.int
+        val arg0 = header.int
+        val arg1 = header.int
+        val dataLength = header.int
+        val dataCrc32 = header.int
+        val magic = header.int
+        val data = if (dataLength > 0) ByteArray(dataLength).also { input.readFully(it) } else null
+        val message = AdbMessage(command, arg0, arg1, dataLength, dataCrc32, magic, data)
+        assertTrue("bad message ${message.toStringShort()}", message.validate(checksum))
+        return message
+    }
+
+    /**
+     * Reads the next message that is not an A_OKAY, such as the acknowledgements of what the
+     * device wrote.
+     */
+    fun readSkipOkay(): AdbMessage {
+        while (true) {
+            val message = read()
+            if (message.command != A_OKAY) return message
+        }
+    }
+
+    /**
+     * @param crc32 data_crc32 to send instead of the right one
+     */
+    fun write(command: Int, arg0: Int, arg1: Int, data: ByteArray? = null, crc32: Int? = null) {
+        if (latency > 0) Thread.sleep(latency)
+        val header = ByteBuffer.allocate(AdbMessage.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+        AdbMessage.writeHeader(header, command, arg0, arg1, data, checksum)
+        if (crc32 != null) header.putInt(16, crc32)
+        output.write(header.array())
+        if (data != null) output.write(data)
+        output.flush()
+    }
+
+    /**
+     * Reads the host's A_CNXN and answers it.
+     */
+    fun handshake(): AdbMessage {
+        val cnxn = readCnxn()
+        writeCnxn()
+        return cnxn
+    }
+
+    /**
+     * Reads the host's A_CNXN and asks it to sign a token first.
+     *
+     * @param trusted if false, the signature is not accepted, as if [publicKey] was unknown, and
+     * the host has to send its public key
+     * @return the public key sent by the host, or null if the signature was accepted
+     */
+    fun handshakeAuth(publicKey: PublicKey, trusted: Boolean = true): ByteArray? {
+        readCnxn()
+
+        val token = ByteArray(20).also { SecureRandom().nextBytes(it) }
+        write(A_AUTH, ADB_AUTH_TOKEN, 0, token)
+        val signature = read()
+        assertEquals(A_AUTH, signature.command)
+        assertEquals(ADB_AUTH_SIGNATURE, signature.arg0)
+        assertTrue("bad signature", TestAdbKey.verify(publicKey, token, signature.data!!))
+
+        if (trusted) {
+            writeCnxn()
+            return null
+        }
+
+        write(A_AUTH, ADB_AUTH_TOKEN, 0, ByteArray(20).also { SecureRandom().nextBytes(it) })
+        val key = read()
+        assertEquals(A_AUTH, key.command)
+        assertEquals(ADB_AUTH_RSAPUBLICKEY, key.arg0)
+        writeCnxn()
+        return key.data
+    }
+
+    /**
+     * Reads the host's A_CNXN, then upgrades the connection to TLS as wireless debugging does.
+     * The device requires a client certificate.
+     */
+    fun handshakeTls(sslContext: SSLContext): SSLSocket {
+        readCnxn()
+
+        write(A_STLS, A_STLS_VERSION, 0)
+        val stls = read()
+        assertEquals(A_STLS, stls.command)
+
+        val tlsSocket = sslContext.socketFactory.createSocket(socket, socket.inetAddress.hostAddress, socket.port, true) as SSLSocket
+        tlsSocket.useClientMode = false
+        tlsSocket.needClientAuth = true
+        tlsSocket.startHandshake()
+        input = DataInputStream(tlsSocket.inputStream)
+        output = tlsSocket.outputStream
+
+        writeCnxn()
+        return tlsSocket
+    }
+
+    private fun readCnxn(): AdbMessage {
+        val cnxn = read()
+        assertEquals(A_CNXN, cnxn.command)
+        return cnxn
+    }
+
+    private fun writeCnxn() {
+        val banner = "device::ro.product.name=fake;ro.product.model=Fake;features=${features.joinToString(",")}\u0000"
+        write(A_CNXN, version, maxPayload, banner.toByteArray())
+    }
+
+    /**
+     * Reads the host's A_OPEN for [destination] and accepts it as [id].
+     *
+     * @param acked initial send window for the host, only used with "delayed_ack"
+     */
+    fun accept(destination: String, id: Int, acked: Int = 0): Stream {
+        val open = readSkipOkay()
+        assertEquals(A_OPEN, open.command)
+        assertEquals(destination, String(open.data!!).trimEnd('\u0000'))
+        return accept(open, id, acked)
+    }
+
+    /**
+     * Accepts the A_OPEN [open] as [id].
+     */
+    fun accept(open: AdbMessage, id: Int, acked: Int = 0): Stream {
+        assertEquals(A_OPEN, open.command)
+        val stream = Stream(id, open.arg0, open.arg1)
+        stream.okay(acked)
+        return stream
+    }
+
+    /**
+     * @param id id of the device side
+     * @param hostId id of the host side
+     * @param hostWindow the host's receive window from its A_OPEN
+     */
+    inner class Stream(val id: Int, val hostId: Int, val hostWindow: Int) {
+
+        private val pending = ByteArrayOutputStream()
+        private var pendingOffset = 0
+
+        /**
+         * Largest payload received on this stream.
+         */
+        var maxReceived = 0
+            private set
+
+        fun write(data: ByteArray) = this@FakeAdbd.write(A_WRTE, id, hostId, data)
+
+        fun okay(acked: Int = 0) {
+            if (delayedAck) {
+                this@FakeAdbd.write(A_OKAY, id, hostId, ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(acked).array())
+            } else {
+                this@FakeAdbd.write(A_OKAY, id, hostId)
+            }
+        }
+
+        fun close() = this@FakeAdbd.write(A_CLSE, id, hostId)
+
+        /**
+         * Reads an A_WRTE from the host on this stream.
+         *
+         * @param ack acknowledge it, which lets the host write again
+         */
+        fun readWrite(ack: Boolean = true): ByteArray {
+            val message = readSkipOkay()
+            assertEquals(message.toStringShort(), A_WRTE, message.command)
+            assertEquals(hostId, message.arg0)
+            assertEquals(id, message.arg1)
+            val data = message.data ?: ByteArray(0)
+            maxReceived = maxReceived.coerceAtLeast(data.size)
+            if (ack) okay(data.size)
+            return data
+        }
+
+        /**
+         * Reads [size] bytes of the host's writes, whatever the payload boundaries are.
+         */
+        fun readBytes(size: Int): ByteArray {
+            while (pending.size() - pendingOffset < size) {
+                pending.write(readWrite())
+            }
+            val bytes = pending.toByteArray()
+            val res = bytes.copyOfRange(pendingOffset, pendingOffset + size)
+            pendingOffset += size
+            if (pendingOffset == bytes.size) {
+                pending.reset()
+                pendingOffset = 0
+            }
+            return res
+        }
+
+        fun readBuffer(size: Int): ByteBuffer = ByteBuffer.wrap(readBytes(size)).order(ByteOrder.LITTLE_ENDIAN)
+    }
+
+    override fun close() {
+        try {
+            socket.close()
+        } catch (e: Throwable) {
+        }
+        server.close()
+    }
+}
@@ -0,0 +1,98 @@
+package moe.shizuku.manager.adb
+
+import org.mockito.Mockito
+import java.net.Socket
+import java.security.KeyStore
+import java.security.PrivateKey
+import java.security.PublicKey
+import java.security.cert.X509Certificate
+import javax.crypto.Cipher
+import javax.net.ssl.KeyManagerFactory
+import javax.net.ssl.SSLContext
+import javax.net.ssl.SSLEngine
+import javax.net.ssl.X509ExtendedTrustManager
+
+/**
+ * A fixed RSA key and self-signed certificate (adbkey.p12) for tests, since [AdbKey] needs
+ * AndroidKeyStore.
+ *
+ * The same key is used by the host and the device, neither side checks the certificate of the
+ * other, as with wireless debugging where the key is trusted by pairing.
+ */
+object TestAdbKey {
+
+    private const val PASSWORD = "android"
+
+    // DigestInfo of SHA-1 without the digest, adb signs the token as if it were one
+    private val SHA1_DIGEST_INFO = byteArrayOf(
+        0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02, 0x1a, 0x05, 0x00, 0x04, 0x14
+    )
+
+    val adbPublicKey = "QAAAAHRlc3Q= test@fake\u0000".toByteArray()
+
+    private val keyStore = KeyStore.getInstance("PKCS12").apply {
+        TestAdbKey::class.java.getResourceAsStream("/adbkey.p12")!!.use { load(it, PASSWORD.toCharArray()) }
+    }
+
+    val privateKey = keyStore.getKey("adb", PASSWORD.toCharArray()) as PrivateKey
+
+    val publicKey: PublicKey = keyStore.getCertificate("adb").publicKey
+
+    val sslContext: SSLContext by lazy {
+        val keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm())
+        keyManagerFactory.init(keyStore, PASSWORD.toCharArray())
+        SSLContext.getInstance("TLSv1.3").apply {
+            init(keyManagerFactory.keyManagers, arrayOf(TrustAllManager), null)
+        }
+    }
+
+    val adbKey: AdbKey by lazy { mock() }
+
+    /**
+     * An [AdbKey] backed by this key.
+     */
+    fun mock(): AdbKey {
+        val key = Mockito.mock(AdbKey::class.java)
+        Mockito.`when`(key.sign(Mockito.any())).thenAnswer { sign(it.getArgument(0)) }
+        Mockito.`when`(key.adbPublicKey).thenReturn(adbPublicKey)
+        Mockito.`when`(key.sslContext).thenReturn(sslContext)
+        return key
+    }
+
+    fun sign(token: ByteArray?): ByteArray {
+        val cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding")
+        cipher.init(Cipher.ENCRYPT_MODE, privateKey)
+        cipher.update(SHA1_DIGEST_INFO)
+        return cipher.doFinal(token ?: ByteArray(0))
+    }
+
+    /**
+     * @return true if [signature] is [token] signed with [publicKey]
+     */
+    fun verify(publicKey: PublicKey, token: ByteArray, signature: ByteArray): Boolean {
+        return try {
+            val cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding")
+            cipher.init(Cipher.DECRYPT_MODE, publicKey)
+            cipher.doFinal(signature).contentEquals(SHA1_DIGEST_INFO + token)
+        } catch (e: Exception) {
+            false
+        }
+    }
+
+    private object TrustAllManager : X509ExtendedTrustManager() {
+
+        override fun checkClientTrusted(chain: Array<out X509Certificate>?, authType: String?, socket: Socket?) {}
+
+        override fun checkClientTrusted(chain: Array<out X509Certificate>?, authType: String?, engine: SSLEngine?) {}
+
+        override fun checkClientTrusted(chain: Array<out X509Certificate>?, authType: String?) {}
+
+        override fun checkServerTrusted(chain: Array<out X509Certificate>?, authType: String?, socket: Socket?) {}
+
+        override fun checkServerTrusted(chain: Array<out X509Certificate>?, authType: String?, engine: SSLEngine?) {}
+
+        override fun checkServerTrusted(chain: Array<out X509Certificate>?, authType: String?) {}
+
+        override fun getAcceptedIssuers(): Array<X509Certificate> = emptyArray()
+    }
+}
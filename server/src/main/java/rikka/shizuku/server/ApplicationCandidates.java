@@ -0,0 +1,198 @@
+package rikka.shizuku.server;
+
+import static rikka.shizuku.server.ServerConstants.MANAGER_APPLICATION_ID;
+import static rikka.shizuku.server.ServerConstants.PERMISSION;
+
+import android.content.pm.ChangedPackages;
+import android.content.pm.IPackageManager;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import androidx.annotation.Nullable;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import kotlin.collections.ArraysKt;
+import rikka.hidden.compat.PackageManagerApis;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Per-user index of the packages that request the Shizuku permission.
+ * <p>
+ * The index is built by listing all packages with GET_PERMISSIONS only, and kept up to date from
+ * PackageManager#getChangedPackages (Android 8.0+), so that later calls only look at the packages
+ * that changed. Below Android 8.0, or if getChangedPackages fails, it's rebuilt.
+ * <p>
+ * Only the package names are kept. {@link #get(int)} reads the packages again each time, since
+ * some state (e.g., stopped, suspended, enabled) changes without a new sequence number.
+ */
+public class ApplicationCandidates {
+
+    private static final Logger LOGGER = new Logger("ApplicationCandidates");
+
+    // Rebuild the whole index instead of updating so many packages one by one
+    private static final int MAX_CHANGED_PACKAGES = 64;
+
+    private static class UserIndex {
+
+        final Set<String> packages = new ArraySet<>();
+        int sequenceNumber;
+        boolean valid;
+    }
+
+    private static final SparseArray<UserIndex> INDEXES = new SparseArray<>();
+
+    private static final Object METHOD_LOCK = new Object();
+    private static Method getChangedPackagesMethod;
+    private static boolean getChangedPackagesResolved;
+
+    /**
+     * Returns the packages in [userId] that request the Shizuku permission, except the manager,
+     * with GET_META_DATA | GET_PERMISSIONS.
+     */
+    public static List<PackageInfo> get(int userId) {
+        List<PackageInfo> res = new ArrayList<>();
+        for (String packageName : getPackageNames(userId)) {
+            PackageInfo pi = getPackageInfo(packageName, userId);
+            if (isCandidate(pi)) {
+                res.add(pi);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns the names of the packages in [userId] that request the Shizuku permission, except
+     * the manager.
+     */
+    public static List<String> getPackageNames(int userId) {
+        UserIndex index;
+        synchronized (INDEXES) {
+            index = INDEXES.get(userId);
+            if (index == null) {
+                index = new UserIndex();
+                INDEXES.put(userId, index);
+            }
+        }
+
+        synchronized (index) {
+            long start = SystemClock.elapsedRealtime();
+            if (!index.valid || !update(index, userId)) {
+                rebuild(index, userId);
+                LOGGER.d("rebuild candidates for user %d: %d packages, %d ms",
+                        userId, index.packages.size(), SystemClock.elapsedRealtime() - start);
+            }
+            return new ArrayList<>(index.packages);
+        }
+    }
+
+    private static void rebuild(UserIndex index, int userId) {
+        // Read the sequence number first, changes during the scan will be seen next time
+        index.valid = false;
+        if (isChangedPackagesSupported()) {
+            try {
+                ChangedPackages changed = getChangedPackages(0, userId);
+                index.sequenceNumber = changed != null ? changed.getSequenceNumber() : 0;
+                index.valid = true;
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "getChangedPackages");
+            }
+        }
+
+        index.packages.clear();
+        for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
+            if (isCandidate(pi)) {
+                index.packages.add(pi.packageName);
+            }
+        }
+    }
+
+    /**
+     * @return false if the index has to be rebuilt
+     */
+    private static boolean update(UserIndex index, int userId) {
+        ChangedPackages changed;
+        try {
+            changed = getChangedPackages(index.sequenceNumber, userId);
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "getChangedPackages");
+            return false;
+        }
+        if (changed == null) {
+            return true;
+        }
+
+        List<String> packageNames = changed.getPackageNames();
+        if (packageNames.size() > MAX_CHANGED_PACKAGES) {
+            return false;
+        }
+
+        for (String packageName : packageNames) {
+            PackageInfo pi = PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
+            if (isCandidate(pi)) {
+                index.packages.add(packageName);
+            } else {
+                index.packages.remove(packageName);
+            }
+        }
+        index.sequenceNumber = changed.getSequenceNumber();
+        LOGGER.d("update candidates for user %d: %d changed packages", userId, packageNames.size());
+        return true;
+    }
+
+    private static boolean isCandidate(@Nullable PackageInfo pi) {
+        return pi != null
+                && pi.applicationInfo != null
+                && pi.requestedPermissions != null
+                && !MANAGER_APPLICATION_ID.equals(pi.packageName)
+                && ArraysKt.contains(pi.requestedPermissions, PERMISSION);
+    }
+
+    @Nullable
+    static PackageInfo getPackageInfo(String packageName, int userId) {
+        return PackageManagerApis.getPackageInfoNoThrow(packageName, PackageManager.GET_META_DATA | PackageManager.GET_PERMISSIONS, userId);
+    }
+
+    private static boolean isChangedPackagesSupported() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return false;
+        }
+
+        synchronized (METHOD_LOCK) {
+            if (!getChangedPackagesResolved) {
+                getChangedPackagesResolved = true;
+                try {
+                    getChangedPackagesMethod = IPackageManager.class.getMethod("getChangedPackages", int.class, int.class);
+                } catch (NoSuchMethodException e) {
+                    LOGGER.w("getChangedPackages is not available");
+                }
+            }
+            return getChangedPackagesMethod != null;
+        }
+    }
+
+    /**
+     * @return null if nothing has changed since [sequenceNumber]
+     * @throws Exception if getChangedPackages is not supported or the call fails
+     */
+    @Nullable
+    private static ChangedPackages getChangedPackages(int sequenceNumber, int userId) throws Exception {
+        if (!isChangedPackagesSupported()) {
+            throw new UnsupportedOperationException("getChangedPackages is not available");
+        }
+
+        IPackageManager pm = IPackageManager.Stub.asInterface(ServiceManager.getService("package"));
+        if (pm == null) {
+            throw new IllegalStateException("package service is not available");
+        }
+        return (ChangedPackages) getChangedPackagesMethod.invoke(pm, sequenceNumber, userId);
+    }
+}
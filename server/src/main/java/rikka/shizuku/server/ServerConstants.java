@@ -9,4 +9,38 @@ public class ServerConstants {
     public static final String REQUEST_PERMISSION_ACTION = MANAGER_APPLICATION_ID + ".intent.action.REQUEST_PERMISSION";
 
     public static final int BINDER_TRANSACTION_getApplications = 10001;
+    public static final int BINDER_TRANSACTION_getStartupReport = 10002;
+
+    /**
+     * Runs several remote transactions in one binder call, in order.
+     * <p>
+     * Data: interface token, count, then for each transaction: target binder, code, flags,
+     * data size, data (appended with {@link android.os.Parcel#appendFrom}).
+     * <p>
+     * Reply: no exception, count, then for each transaction: {@link #BATCH_RESULT_OK}, reply
+     * size, reply; or {@link #BATCH_RESULT_ERROR}, error message.
+     */
+    public static final int BINDER_TRANSACTION_batch = 10003;
+
+    public static final int BATCH_RESULT_OK = 0;
+    public static final int BATCH_RESULT_ERROR = 1;
+
+    public static final int BATCH_MAX_TRANSACTIONS = 256;
+
+    /**
+     * Manager only, getFlagsForUid for many uids at once.
+     * <p>
+     * Data: interface token, uids (int[]), mask. Reply: no exception, flags (int[], in the same
+     * order as uids).
+     */
+    public static final int BINDER_TRANSACTION_getFlagsForUids = 10004;
+
+    /**
+     * Same list as {@link #BINDER_TRANSACTION_getApplications}, with only what the manager shows.
+     * <p>
+     * Data: interface token, user id. Reply: no exception, count, then for each package:
+     * package name, uid, ApplicationInfo flags, requires root (int), source dir, public source
+     * dir, split source dirs, split public source dirs, icon, label res, non-localized label.
+     */
+    public static final int BINDER_TRANSACTION_getApplicationsSlim = 10005;
 }
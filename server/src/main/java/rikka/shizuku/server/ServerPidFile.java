@@ -0,0 +1,90 @@
+package rikka.shizuku.server;
+
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * "&lt;pid&gt; &lt;start time&gt;" of the running server, so that the starter can find and kill
+ * it without scanning every process in /proc. The start time (in clock ticks since boot, from
+ * /proc/self/stat) is used by the starter to tell whether the pid has been reused.
+ */
+public class ServerPidFile {
+
+    private static final Logger LOGGER = new Logger("ServerPidFile");
+
+    private static final File FILE = new File("/data/local/tmp/shizuku/server.pid");
+
+    public static void write() {
+        int pid = Os.getpid();
+        String startTime = readStartTime();
+        if (startTime == null) {
+            return;
+        }
+
+        File tmp = new File(FILE.getParentFile(), FILE.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write((pid + " " + startTime + "\n").getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            LOGGER.w("failed to write pid file: " + e);
+            return;
+        }
+
+        try {
+            Os.chmod(tmp.getAbsolutePath(), 420 /* 0644 */);
+            Os.rename(tmp.getAbsolutePath(), FILE.getAbsolutePath());
+        } catch (ErrnoException e) {
+            LOGGER.w("failed to write pid file: " + e);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    /**
+     * @return the pid in the file, or -1 if there is no file
+     */
+    public static int readPid() {
+        String line;
+        try (BufferedReader reader = new BufferedReader(new FileReader(FILE))) {
+            line = reader.readLine();
+        } catch (IOException e) {
+            return -1;
+        }
+        if (line == null) {
+            return -1;
+        }
+        try {
+            int index = line.indexOf(' ');
+            return Integer.parseInt(index != -1 ? line.substring(0, index) : line);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String readStartTime() {
+        String stat;
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/stat"))) {
+            stat = reader.readLine();
+        } catch (IOException e) {
+            LOGGER.w("failed to read /proc/self/stat: " + e);
+            return null;
+        }
+
+        // comm may contain spaces, fields after the last ")" start from the 3rd (state),
+        // starttime is the 22nd
+        int index = stat != null ? stat.lastIndexOf(')') : -1;
+        if (index == -1) {
+            return null;
+        }
+        String[] fields = stat.substring(index + 2).split(" ");
+        return fields.length > 19 ? fields[19] : null;
+    }
+}
@@ -0,0 +1,177 @@
+package rikka.shizuku.server;
+
+import android.os.Build;
+import android.util.AtomicFile;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.SerializedName;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import rikka.shizuku.server.ktx.HandlerKt;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Apps that are attached to the server or own user services, saved to
+ * /data/local/tmp/shizuku/snapshot.json so that a server restarted by the supervisor of the
+ * starter, or started by an upgraded manager, can deliver the binder to them before scanning all
+ * packages.
+ */
+public class ServerSnapshot {
+
+    private static final Logger LOGGER = new Logger("ServerSnapshot");
+
+    private static final Gson GSON = new GsonBuilder().create();
+
+    private static final long WRITE_DELAY = 1000;
+
+    private static final File FILE = new File("/data/local/tmp/shizuku/snapshot.json");
+    private static final AtomicFile ATOMIC_FILE = new AtomicFile(FILE);
+
+    public static class Entry {
+
+        @SerializedName("uid")
+        public final int uid;
+
+        @SerializedName("packageName")
+        public final String packageName;
+
+        public Entry(int uid, String packageName) {
+            this.uid = uid;
+            this.packageName = packageName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Entry entry = (Entry) o;
+            return uid == entry.uid && Objects.equals(packageName, entry.packageName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(uid, packageName);
+        }
+    }
+
+    private static class Snapshot {
+
+        @SerializedName("clients")
+        public List<Entry> clients = new ArrayList<>();
+
+        @SerializedName("userServices")
+        public List<Entry> userServices = new ArrayList<>();
+    }
+
+    private static final Set<Entry> CLIENTS = new LinkedHashSet<>();
+    private static final Set<Entry> USER_SERVICES = new LinkedHashSet<>();
+
+    private static final Runnable WRITE_RUNNER = ServerSnapshot::write;
+
+    /**
+     * Returns the apps saved by the previous server, user service owners first.
+     */
+    @NonNull
+    public static List<Entry> read() {
+        Snapshot snapshot = null;
+        try (FileInputStream stream = ATOMIC_FILE.openRead()) {
+            snapshot = GSON.fromJson(new InputStreamReader(stream), Snapshot.class);
+        } catch (FileNotFoundException e) {
+            LOGGER.i("no snapshot");
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "read snapshot");
+        }
+
+        Set<Entry> entries = new LinkedHashSet<>();
+        if (snapshot != null) {
+            if (snapshot.userServices != null) entries.addAll(snapshot.userServices);
+            if (snapshot.clients != null) entries.addAll(snapshot.clients);
+        }
+        return new ArrayList<>(entries);
+    }
+
+    public static void addClient(int uid, String packageName) {
+        synchronized (CLIENTS) {
+            if (!CLIENTS.add(new Entry(uid, packageName))) return;
+        }
+        scheduleWrite();
+    }
+
+    public static void removeClient(int uid, String packageName) {
+        synchronized (CLIENTS) {
+            if (!CLIENTS.remove(new Entry(uid, packageName))) return;
+        }
+        scheduleWrite();
+    }
+
+    public static void addUserService(int uid, String packageName) {
+        synchronized (CLIENTS) {
+            if (!USER_SERVICES.add(new Entry(uid, packageName))) return;
+        }
+        scheduleWrite();
+    }
+
+    public static void removeUserService(int uid, String packageName) {
+        synchronized (CLIENTS) {
+            if (!USER_SERVICES.remove(new Entry(uid, packageName))) return;
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Writes pending changes now, before another server instance reads the snapshot.
+     */
+    public static void flush() {
+        HandlerKt.getWorkerHandler().removeCallbacks(WRITE_RUNNER);
+        write();
+    }
+
+    private static void scheduleWrite() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            if (HandlerKt.getWorkerHandler().hasCallbacks(WRITE_RUNNER)) {
+                return;
+            }
+        } else {
+            HandlerKt.getWorkerHandler().removeCallbacks(WRITE_RUNNER);
+        }
+        HandlerKt.getWorkerHandler().postDelayed(WRITE_RUNNER, WRITE_DELAY);
+    }
+
+    private static void write() {
+        Snapshot snapshot = new Snapshot();
+        synchronized (CLIENTS) {
+            snapshot.clients.addAll(CLIENTS);
+            snapshot.userServices.addAll(USER_SERVICES);
+        }
+
+        FileOutputStream stream;
+        try {
+            stream = ATOMIC_FILE.startWrite();
+        } catch (IOException e) {
+            LOGGER.w("failed to write snapshot: " + e);
+            return;
+        }
+
+        try {
+            stream.write(GSON.toJson(snapshot).getBytes());
+            ATOMIC_FILE.finishWrite(stream);
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "write snapshot");
+            ATOMIC_FILE.failWrite(stream);
+        }
+    }
+}
@@ -1,10 +1,162 @@
 package rikka.shizuku.server;
 
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import moe.shizuku.server.IShizukuApplication;
+import rikka.shizuku.server.ktx.HandlerKt;
+
+/**
+ * Client records keyed by (uid &lt;&lt; 32 | pid), split into stripes by uid, each with its own
+ * lock. Attaching or looking up a client only locks one stripe, and all records of a uid are in
+ * the same stripe, so {@link #findClients(int)} only looks at one stripe as well.
+ * <p>
+ * Records are removed when the client binder dies. Lookups skip dead records right away, the
+ * removal itself is batched on the worker thread, since many clients tend to die together
+ * (e.g., when a user is stopped).
+ */
 public class ShizukuClientManager extends ClientManager<ShizukuConfigManager> {
 
+    private static final int STRIPES = 16;
+
+    private static final long CLEANUP_DELAY = 100;
+
+    private static class Stripe {
+
+        // Sorted by key without boxing it, a stripe only holds a few records so binary search is
+        // as fast as hashing, and the records of a uid are next to each other
+        final LongSparseArray<ClientRecord> records = new LongSparseArray<>();
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final ConcurrentLinkedQueue<ClientRecord> deadClients = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean cleanupScheduled = new AtomicBoolean();
+    private final Runnable cleanupRunner = this::cleanup;
+
     public ShizukuClientManager(ShizukuConfigManager configManager) {
         super(configManager);
+
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private static long key(int uid, int pid) {
+        return ((long) uid << 32) | (pid & 0xffffffffL);
+    }
+
+    private Stripe stripe(int uid) {
+        // Spread consecutive uids, which are common, over the stripes
+        int h = uid * 0x9e3779b9;
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
     }
-}
 
+    private static boolean isAlive(ClientRecord record) {
+        return record.client.asBinder().isBinderAlive();
+    }
+
+    @Override
+    public List<ClientRecord> findClients(int uid) {
+        Stripe stripe = stripe(uid);
+        List<ClientRecord> res = new ArrayList<>();
+        synchronized (stripe) {
+            for (int i = 0, size = stripe.records.size(); i < size; i++) {
+                ClientRecord record = stripe.records.valueAt(i);
+                if (record.uid == uid && isAlive(record)) {
+                    res.add(record);
+                }
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public ClientRecord findClient(int uid, int pid) {
+        Stripe stripe = stripe(uid);
+        ClientRecord record;
+        synchronized (stripe) {
+            record = stripe.records.get(key(uid, pid));
+        }
+        return record != null && isAlive(record) ? record : null;
+    }
+
+    /**
+     * Adds a record for the client, or returns the existing one if the same process has already
+     * attached.
+     */
+    @Override
+    public ClientRecord addClient(int uid, int pid, IShizukuApplication client, String packageName, int apiVersion) {
+        long key = key(uid, pid);
+        Stripe stripe = stripe(uid);
+
+        ClientRecord record;
+        synchronized (stripe) {
+            ClientRecord existing = stripe.records.get(key);
+            if (existing != null && isAlive(existing)) {
+                return existing;
+            }
+
+            record = new ClientRecord(uid, pid, client, packageName, apiVersion);
+            ShizukuConfig.PackageEntry entry = getConfigManager().find(uid);
+            if (entry != null && entry.isAllowed()) {
+                record.allowed = true;
+            }
 
+            IBinder binder = client.asBinder();
+            try {
+                binder.linkToDeath(() -> onClientDied(record), 0);
+            } catch (RemoteException e) {
+                LOGGER.w(e, "addClient: linkToDeath");
+                return null;
+            }
+            stripe.records.put(key, record);
+        }
+
+        ServerSnapshot.addClient(uid, packageName);
+        return record;
+    }
+
+    private void onClientDied(ClientRecord record) {
+        deadClients.add(record);
+        if (cleanupScheduled.compareAndSet(false, true)) {
+            HandlerKt.getWorkerHandler().postDelayed(cleanupRunner, CLEANUP_DELAY);
+        }
+    }
+
+    private void cleanup() {
+        cleanupScheduled.set(false);
+
+        int count = 0;
+        ClientRecord record;
+        while ((record = deadClients.poll()) != null) {
+            long key = key(record.uid, record.pid);
+            Stripe stripe = stripe(record.uid);
+            boolean samePackageAlive = false;
+            synchronized (stripe) {
+                // The same pid might have attached again with a new record
+                if (stripe.records.get(key) == record) {
+                    stripe.records.remove(key);
+                    count++;
+                }
+                for (int i = 0, size = stripe.records.size(); i < size; i++) {
+                    ClientRecord other = stripe.records.valueAt(i);
+                    if (other.uid == record.uid && other.packageName.equals(record.packageName) && isAlive(other)) {
+                        samePackageAlive = true;
+                        break;
+                    }
+                }
+            }
+            if (!samePackageAlive) {
+                ServerSnapshot.removeClient(record.uid, record.packageName);
+            }
+        }
+        LOGGER.d("removed %d dead clients", count);
+    }
+}
@@ -26,7 +26,6 @@ import java.util.Set;
 import kotlin.collections.ArraysKt;
 import rikka.hidden.compat.PackageManagerApis;
 import rikka.hidden.compat.PermissionManagerApis;
-import rikka.hidden.compat.UserManagerApis;
 import rikka.shizuku.server.ktx.HandlerKt;
 
 public class ShizukuConfigManager extends ConfigManager {
@@ -99,6 +98,8 @@ public class ShizukuConfigManager extends ConfigManager {
 
     private final ShizukuConfig config;
 
+    private boolean frozen;
+
     public ShizukuConfigManager() {
         this.config = load();
 
@@ -154,7 +155,9 @@ public class ShizukuConfigManager extends ConfigManager {
             }
         }
 
-        for (int userId : UserManagerApis.getUserIdsNoThrow()) {
+        // Listed in parallel, the config is only updated from this thread
+        List<List<PackageInfo>> results = UserEnumerator.forEachUser(userId -> {
+            List<PackageInfo> list = new ArrayList<>();
             for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
                 if (pi == null
                         || pi.applicationInfo == null
@@ -162,7 +165,13 @@ public class ShizukuConfigManager extends ConfigManager {
                         || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
                     continue;
                 }
+                list.add(pi);
+            }
+            return list;
+        }, null);
 
+        for (List<PackageInfo> list : results) {
+            for (PackageInfo pi : list) {
                 int uid = pi.applicationInfo.uid;
                 boolean allowed;
                 try {
@@ -212,6 +221,21 @@ public class ShizukuConfigManager extends ConfigManager {
         }
     }
 
+    /**
+     * Returns a copy of the entries, which can be read without holding the lock.
+     */
+    public List<ShizukuConfig.PackageEntry> getEntries() {
+        synchronized (this) {
+            List<ShizukuConfig.PackageEntry> entries = new ArrayList<>(config.packages.size());
+            for (ShizukuConfig.PackageEntry entry : config.packages) {
+                ShizukuConfig.PackageEntry copy = new ShizukuConfig.PackageEntry(entry.uid, entry.flags);
+                copy.packages = entry.packages != null ? new ArrayList<>(entry.packages) : null;
+                entries.add(copy);
+            }
+            return entries;
+        }
+    }
+
     private void updateLocked(int uid, List<String> packages, int mask, int values) {
         ShizukuConfig.PackageEntry entry = findLocked(uid);
         if (entry == null) {
@@ -237,6 +261,7 @@ public class ShizukuConfigManager extends ConfigManager {
 
     public void update(int uid, List<String> packages, int mask, int values) {
         synchronized (this) {
+            checkNotFrozenLocked();
             updateLocked(uid, packages, mask, values);
         }
     }
@@ -252,7 +277,47 @@ public class ShizukuConfigManager extends ConfigManager {
 
     public void remove(int uid) {
         synchronized (this) {
+            checkNotFrozenLocked();
             removeLocked(uid);
         }
     }
+
+    private void checkNotFrozenLocked() {
+        if (frozen) {
+            throw new IllegalStateException("config is being handed over to the new server");
+        }
+    }
+
+    public boolean isFrozen() {
+        synchronized (this) {
+            return frozen;
+        }
+    }
+
+    /**
+     * Writes pending changes now, before another server instance loads the config.
+     */
+    public void flush() {
+        synchronized (this) {
+            HandlerKt.getWorkerHandler().removeCallbacks(mWriteRunner);
+            write(config);
+        }
+    }
+
+    /**
+     * Writes pending changes and rejects further ones, so that nothing is lost while another
+     * server instance loads the config. Changes are accepted again after {@link #unfreeze()}.
+     */
+    public void flushAndFreeze() {
+        synchronized (this) {
+            flush();
+            frozen = true;
+        }
+    }
+
+    public void unfreeze() {
+        synchronized (this) {
+            frozen = false;
+        }
+    }
 }
@@ -29,14 +29,34 @@ import android.os.Looper;
 import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import kotlin.collections.ArraysKt;
 import moe.shizuku.api.BinderContainer;
@@ -57,24 +77,76 @@ import rikka.shizuku.server.util.UserHandleCompat;
 
 public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuClientManager, ShizukuConfigManager> {
 
+    private static final long WAIT_SERVICE_INTERVAL = 50;
+
+    private static final int UPGRADE_CHECK_ATTEMPTS = 10;
+    private static final long UPGRADE_CHECK_INTERVAL = 1000;
+    private static final long UPGRADE_TIMEOUT = 30 * 1000;
+    private static final int UPGRADE_MAX_TIMEOUTS = 4;
+    private static final File UPGRADE_REQUEST_FILE = new File("/data/local/tmp/shizuku/upgrade");
+
     public static void main(String[] args) {
         DdmHandleAppName.setAppName("shizuku_server", 0);
         RishConfig.setLibraryPath(System.getProperty("shizuku.library.path"));
 
+        StartupTrace.begin("init");
         Looper.prepareMainLooper();
         new ShizukuService();
         Looper.loop();
     }
 
+    /**
+     * Waits for all the services at the same time, so that the total wait is the slowest one
+     * instead of the sum.
+     */
+    private static void waitSystemServices(String... names) {
+        CountDownLatch latch = new CountDownLatch(names.length);
+        for (String name : names) {
+            if (ServiceManager.getService(name) != null) {
+                latch.countDown();
+                continue;
+            }
+            new Thread(() -> {
+                waitSystemService(name);
+                latch.countDown();
+            }, "WaitService-" + name).start();
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            LOGGER.w(e.getMessage(), e);
+        }
+    }
+
     private static void waitSystemService(String name) {
+        if (ServiceManager.getService(name) != null) {
+            return;
+        }
+
+        // From Android 11, servicemanager notifies registrations (IServiceManager#registerForNotifications),
+        // ServiceManager#waitForService blocks on that instead of polling.
+        if (BuildUtils.atLeast30()) {
+            try {
+                Method waitForService = ServiceManager.class.getDeclaredMethod("waitForService", String.class);
+                if (waitForService.invoke(null, name) != null) {
+                    LOGGER.i("service " + name + " is started");
+                    return;
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOGGER.w("waitForService " + name + ": " + e);
+            }
+        }
+
+        long start = SystemClock.elapsedRealtime();
         while (ServiceManager.getService(name) == null) {
             try {
-                LOGGER.i("service " + name + " is not started, wait 1s.");
-                Thread.sleep(1000);
+                Thread.sleep(WAIT_SERVICE_INTERVAL);
             } catch (InterruptedException e) {
                 LOGGER.w(e.getMessage(), e);
             }
         }
+        LOGGER.i("service " + name + " is started after " + (SystemClock.elapsedRealtime() - start) + "ms");
     }
 
     public static ApplicationInfo getManagerApplicationInfo() {
@@ -87,6 +159,8 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
     private final ShizukuClientManager clientManager;
     private final ShizukuConfigManager configManager;
     private final int managerAppId;
+    private final String managerSourceDir;
+    private boolean upgrading;
 
     public ShizukuService() {
         super();
@@ -95,10 +169,16 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
 
         LOGGER.i("starting server...");
 
-        waitSystemService("package");
-        waitSystemService(Context.ACTIVITY_SERVICE);
-        waitSystemService(Context.USER_SERVICE);
-        waitSystemService(Context.APP_OPS_SERVICE);
+        ServerPidFile.write();
+
+        // Set by the supervisor in the starter if the previous server crashed, or if it's
+        // replaced because the manager is upgraded (by the previous server if not supervised)
+        boolean restarted = System.getenv("SHIZUKU_RESTART") != null;
+        int upgradeFrom = parseInt(System.getenv("SHIZUKU_UPGRADE_FROM"), -1);
+        List<ServerSnapshot.Entry> snapshot = restarted || upgradeFrom != -1 ? ServerSnapshot.read() : Collections.emptyList();
+
+        StartupTrace.begin("waitSystemService");
+        waitSystemServices("package", Context.ACTIVITY_SERVICE, Context.USER_SERVICE, Context.APP_OPS_SERVICE);
 
         ApplicationInfo ai = getManagerApplicationInfo();
         if (ai == null) {
@@ -107,25 +187,225 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
 
         assert ai != null;
         managerAppId = ai.uid;
+        managerSourceDir = ai.sourceDir;
 
+        StartupTrace.begin("loadConfig");
         configManager = getConfigManager();
         clientManager = getClientManager();
 
-        ApkChangedObservers.start(ai.sourceDir, () -> {
-            if (getManagerApplicationInfo() == null) {
-                LOGGER.w("manager app is uninstalled in user 0, exiting...");
-                System.exit(ServerConstants.MANAGER_APP_NOT_FOUND);
-            }
-        });
+        StartupTrace.begin("registerObservers");
+
+        ApkChangedObservers.start(ai.sourceDir, () -> mainHandler.post(() -> onManagerApkChanged(0)));
 
         BinderSender.register(this);
 
+        StartupTrace.end();
+
         mainHandler.post(() -> {
-            sendBinderToClient();
+            Set<String> sent = new HashSet<>();
+            if (!snapshot.isEmpty()) {
+                StartupTrace.begin("sendBinderToSnapshot");
+                sendBinderToSnapshot(snapshot, sent);
+            }
+            StartupTrace.begin("sendBinderToClient");
+            sendBinderToClient(sent);
+            StartupTrace.begin("sendBinderToManager");
             sendBinderToManager();
+            StartupTrace.finish();
+
+            if (upgradeFrom != -1) {
+                stopPreviousServer(upgradeFrom);
+            }
         });
     }
 
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private void onManagerApkChanged(int attempt) {
+        if (upgrading) {
+            return;
+        }
+
+        ApplicationInfo ai = getManagerApplicationInfo();
+        if (ai == null) {
+            LOGGER.w("manager app is uninstalled in user 0, exiting...");
+            System.exit(ServerConstants.MANAGER_APP_NOT_FOUND);
+            return;
+        }
+
+        if (!Objects.equals(ai.sourceDir, managerSourceDir) && new File(ai.sourceDir).exists()) {
+            upgrade(ai.sourceDir);
+        } else if (!new File(managerSourceDir).exists() && attempt < UPGRADE_CHECK_ATTEMPTS) {
+            // The old apk is removed but package manager has not returned the new path yet
+            mainHandler.postDelayed(() -> onManagerApkChanged(attempt + 1), UPGRADE_CHECK_INTERVAL);
+        }
+    }
+
+    /**
+     * Starts the server from the upgraded manager apk. Config and the snapshot of clients are
+     * written out first, and config changes are rejected until the handoff is over, so that the
+     * new server starts with the same state. The new server delivers its binder to clients and
+     * then stops this one, so that clients always have a working binder.
+     * <p>
+     * The supervisor in the starter is asked to start the new server (see supervise_server in
+     * starter.cpp), so that it's supervised as this one is. Only a server without a supervisor
+     * starts the new one itself.
+     * <p>
+     * If this server is not stopped in time, the new one is checked: while it's alive it's given
+     * a few more chances, otherwise (or if it never finishes) this server keeps serving, takes
+     * the pid file back so that it stays supervised, and allows a later upgrade.
+     */
+    private void upgrade(String sourceDir) {
+        LOGGER.i("manager is upgraded, start server from %s", sourceDir);
+        upgrading = true;
+
+        configManager.flushAndFreeze();
+        ServerSnapshot.flush();
+
+        int supervisor = parseInt(System.getenv("SHIZUKU_SUPERVISOR"), -1);
+        boolean started;
+        int pid = -1;
+        if (supervisor != -1 && supervisor == Os.getppid()) {
+            started = requestUpgrade(supervisor, sourceDir);
+        } else {
+            LOGGER.w("not supervised, start server from %s directly", sourceDir);
+            pid = startServer(sourceDir);
+            started = pid != -1;
+        }
+
+        if (!started) {
+            configManager.unfreeze();
+            upgrading = false;
+            return;
+        }
+
+        LOGGER.i("new server started, wait for it to take over");
+        int newServer = pid;
+        mainHandler.postDelayed(() -> checkUpgrade(newServer, 1), UPGRADE_TIMEOUT);
+    }
+
+    private static boolean requestUpgrade(int supervisor, String sourceDir) {
+        File tmp = new File(UPGRADE_REQUEST_FILE.getParentFile(), UPGRADE_REQUEST_FILE.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write((Os.getpid() + " " + sourceDir + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOGGER.e(e, "failed to write upgrade request");
+            return false;
+        }
+
+        try {
+            Os.rename(tmp.getAbsolutePath(), UPGRADE_REQUEST_FILE.getAbsolutePath());
+            Os.kill(supervisor, OsConstants.SIGUSR1);
+        } catch (ErrnoException e) {
+            LOGGER.e(e, "failed to request upgrade from supervisor %d", supervisor);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return pid of the new server, or -1
+     */
+    private int startServer(String sourceDir) {
+        String libraryPath = System.getProperty("shizuku.library.path");
+        StringBuilder command = new StringBuilder("exec /system/bin/app_process")
+                .append(" -Djava.class.path=").append(sourceDir);
+        if (libraryPath != null) {
+            command.append(" -Dshizuku.library.path=").append(libraryPath.replace(managerSourceDir, sourceDir));
+        }
+        command.append(" /system/bin --nice-name=shizuku_server ")
+                .append(ShizukuService.class.getName())
+                .append(" </dev/null >/dev/null 2>&1 & echo $!");
+
+        ProcessBuilder builder = new ProcessBuilder("/system/bin/sh", "-c", command.toString());
+        Map<String, String> env = builder.environment();
+        env.put("CLASSPATH", sourceDir);
+        env.put("SHIZUKU_UPGRADE_FROM", Integer.toString(Os.getpid()));
+        env.remove("SHIZUKU_RESTART");
+        env.remove("SHIZUKU_STARTER_TRACE");
+        env.remove("SHIZUKU_SUPERVISOR");
+
+        int pid = -1;
+        try {
+            Process process = builder.start();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                pid = parseInt(reader.readLine(), -1);
+            }
+            process.waitFor();
+        } catch (IOException | InterruptedException e) {
+            LOGGER.e(e, "failed to start server from %s", sourceDir);
+        }
+        return pid;
+    }
+
+    /**
+     * @param newServer pid of the new server, or -1 if it's started by the supervisor, then it's
+     *                  found from the pid file the new server writes when it starts
+     */
+    private void checkUpgrade(int newServer, int timeouts) {
+        int pid = newServer != -1 ? newServer : ServerPidFile.readPid();
+        boolean alive = pid != -1 && pid != Os.getpid() && isServerProcess(pid);
+        if (alive && timeouts < UPGRADE_MAX_TIMEOUTS) {
+            LOGGER.w("new server %d has not taken over yet", pid);
+            mainHandler.postDelayed(() -> checkUpgrade(newServer, timeouts + 1), UPGRADE_TIMEOUT);
+            return;
+        }
+
+        if (alive) {
+            // The supervisor goes back to this server once the new one is gone
+            LOGGER.w("new server %d did not take over in time, kill it", pid);
+            try {
+                Os.kill(pid, OsConstants.SIGKILL);
+            } catch (ErrnoException e) {
+                LOGGER.w("failed to kill new server %d: %s", pid, e.getMessage());
+            }
+        } else {
+            LOGGER.w("new server has died or never started");
+        }
+
+        // The new server may have written its pid and delivered its binder
+        ServerPidFile.write();
+        configManager.unfreeze();
+        upgrading = false;
+        sendBinderToClient();
+        sendBinderToManager();
+    }
+
+    private static boolean isServerProcess(int pid) {
+        String name;
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/cmdline"))) {
+            name = reader.readLine();
+        } catch (IOException e) {
+            return false;
+        }
+        return name != null && name.startsWith("shizuku_server");
+    }
+
+    private static void stopPreviousServer(int pid) {
+        if (!isServerProcess(pid)) {
+            LOGGER.i("previous server %d has gone", pid);
+            return;
+        }
+
+        LOGGER.i("upgrade finished, stop previous server %d", pid);
+        try {
+            Os.kill(pid, OsConstants.SIGTERM);
+        } catch (ErrnoException e) {
+            LOGGER.w("failed to stop previous server %d: %s", pid, e.getMessage());
+        }
+    }
+
     @Override
     public ShizukuUserServiceManager onCreateUserServiceManager() {
         return new ShizukuUserServiceManager();
@@ -207,14 +487,11 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
 
         isManager = MANAGER_APPLICATION_ID.equals(requestPackageName);
 
-        if (clientManager.findClient(callingUid, callingPid) == null) {
-            synchronized (this) {
-                clientRecord = clientManager.addClient(callingUid, callingPid, application, requestPackageName, apiVersion);
-            }
-            if (clientRecord == null) {
-                LOGGER.w("Add client failed");
-                return;
-            }
+        // Only locks the stripe of callingUid, returns the existing record if already attached
+        clientRecord = clientManager.addClient(callingUid, callingPid, application, requestPackageName, apiVersion);
+        if (clientRecord == null) {
+            LOGGER.w("Add client failed");
+            return;
         }
 
         LOGGER.d("attachApplication: %s %d %d", requestPackageName, callingUid, callingPid);
@@ -286,6 +563,10 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         boolean allowed = data.getBoolean(REQUEST_PERMISSION_REPLY_ALLOWED);
         boolean onetime = data.getBoolean(REQUEST_PERMISSION_REPLY_IS_ONETIME);
 
+        if (!onetime && configManager.isFrozen()) {
+            throw new IllegalStateException("server is being upgraded, try again later");
+        }
+
         LOGGER.i("dispatchPermissionConfirmationResult: uid=%d, pid=%d, requestCode=%d, allowed=%s, onetime=%s",
                 requestUid, requestPid, requestCode, Boolean.toString(allowed), Boolean.toString(onetime));
 
@@ -361,6 +642,30 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
         return getFlagsForUidInternal(uid, mask, true);
     }
 
+    private int[] getFlagsForUids(int[] uids, int mask) {
+        if (UserHandleCompat.getAppId(Binder.getCallingUid()) != managerAppId) {
+            throw new SecurityException("getFlagsForUids is allowed to be called only from the manager");
+        }
+        if (uids == null) {
+            return new int[0];
+        }
+
+        // Packages with a shared uid appear more than once
+        SparseIntArray cache = new SparseIntArray();
+        int[] result = new int[uids.length];
+        for (int i = 0; i < uids.length; i++) {
+            int uid = uids[i];
+            int index = cache.indexOfKey(uid);
+            if (index >= 0) {
+                result[i] = cache.valueAt(index);
+            } else {
+                result[i] = getFlagsForUidInternal(uid, mask, true);
+                cache.put(uid, result[i]);
+            }
+        }
+        return result;
+    }
+
     @Override
     public void updateFlagsForUid(int uid, int mask, int value) throws RemoteException {
         if (UserHandleCompat.getAppId(Binder.getCallingUid()) != managerAppId) {
@@ -368,6 +673,11 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             return;
         }
 
+        // Checked before the runtime permission is changed, so that nothing is half done
+        if (configManager.isFrozen()) {
+            throw new IllegalStateException("server is being upgraded, try again later");
+        }
+
         int userId = UserHandleCompat.getUserId(uid);
 
         if ((mask & ConfigManager.MASK_PERMISSION) != 0) {
@@ -411,7 +721,30 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
     }
 
     private ParcelableListSlice<PackageInfo> getApplications(int userId) {
-        List<PackageInfo> list = new ArrayList<>();
+        return new ParcelableListSlice<>(getApplicationsInternal(userId));
+    }
+
+    private void writeApplicationsSlim(int userId, Parcel reply) {
+        List<PackageInfo> list = getApplicationsInternal(userId);
+        reply.writeInt(list.size());
+        for (PackageInfo pi : list) {
+            ApplicationInfo ai = pi.applicationInfo;
+            reply.writeString(pi.packageName);
+            reply.writeInt(ai.uid);
+            reply.writeInt(ai.flags);
+            reply.writeInt(ai.metaData != null && ai.metaData.getBoolean("moe.shizuku.client.V3_REQUIRES_ROOT", false) ? 1 : 0);
+            reply.writeString(ai.sourceDir);
+            reply.writeString(ai.publicSourceDir);
+            reply.writeStringArray(ai.splitSourceDirs);
+            reply.writeStringArray(ai.splitPublicSourceDirs);
+            reply.writeInt(ai.icon);
+            reply.writeInt(ai.labelRes);
+            TextUtils.writeToParcel(ai.nonLocalizedLabel, reply, 0);
+        }
+    }
+
+    private List<PackageInfo> getApplicationsInternal(int userId) {
+        long start = SystemClock.elapsedRealtime();
         List<Integer> users = new ArrayList<>();
         if (userId == -1) {
             users.addAll(UserManagerApis.getUserIdsNoThrow());
@@ -419,32 +752,65 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             users.add(userId);
         }
 
-        for (int user : users) {
-            for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(PackageManager.GET_META_DATA | PackageManager.GET_PERMISSIONS, user)) {
-                if (Objects.equals(MANAGER_APPLICATION_ID, pi.packageName)) continue;
-                if (pi.applicationInfo == null) continue;
+        // Workers only read this copy, the config itself is changed from binder threads
+        List<ShizukuConfig.PackageEntry> entries = configManager.getEntries();
+        SparseArray<ShizukuConfig.PackageEntry> entriesByUid = new SparseArray<>(entries.size());
+        for (ShizukuConfig.PackageEntry entry : entries) {
+            entriesByUid.put(entry.uid, entry);
+        }
 
-                int uid = pi.applicationInfo.uid;
-                int flags = 0;
-                ShizukuConfig.PackageEntry entry = configManager.find(uid);
-                if (entry != null) {
-                    if (entry.packages != null && !entry.packages.contains(pi.packageName))
-                        continue;
-                    flags = entry.flags & ConfigManager.MASK_PERMISSION;
-                }
+        List<PackageInfo> list = new ArrayList<>();
+        for (List<PackageInfo> result : UserEnumerator.forEachUser(users, user -> getApplicationsForUser(user, entries, entriesByUid), null)) {
+            list.addAll(result);
+        }
+        LOGGER.d("getApplications for user %d: %d packages, %d ms", userId, list.size(), SystemClock.elapsedRealtime() - start);
+        return list;
+    }
 
-                if (flags != 0) {
-                    list.add(pi);
-                } else if (pi.applicationInfo.metaData != null
-                        && pi.applicationInfo.metaData.getBoolean("moe.shizuku.client.V3_SUPPORT", false)
-                        && pi.requestedPermissions != null
-                        && ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                    list.add(pi);
-                }
+    private static List<PackageInfo> getApplicationsForUser(int user, List<ShizukuConfig.PackageEntry> entries,
+                                                            SparseArray<ShizukuConfig.PackageEntry> entriesByUid) {
+        List<PackageInfo> list = new ArrayList<>();
+        Set<String> added = new HashSet<>();
+        for (PackageInfo pi : ApplicationCandidates.get(user)) {
+            int uid = pi.applicationInfo.uid;
+            int flags = 0;
+            ShizukuConfig.PackageEntry entry = entriesByUid.get(uid);
+            if (entry != null) {
+                if (entry.packages != null && !entry.packages.contains(pi.packageName))
+                    continue;
+                flags = entry.flags & ConfigManager.MASK_PERMISSION;
+            }
+
+            if (flags != 0) {
+                list.add(pi);
+                added.add(pi.packageName);
+            } else if (pi.applicationInfo.metaData != null
+                    && pi.applicationInfo.metaData.getBoolean("moe.shizuku.client.V3_SUPPORT", false)) {
+                list.add(pi);
+                added.add(pi.packageName);
+            }
+        }
+
+        // Apps that have a config entry but no longer request the permission are not
+        // candidates, look them up one by one. An entry without packages applies to all packages
+        // of its uid.
+        for (ShizukuConfig.PackageEntry entry : entries) {
+            if (UserHandleCompat.getUserId(entry.uid) != user
+                    || (entry.flags & ConfigManager.MASK_PERMISSION) == 0) {
+                continue;
             }
+            List<String> packages = entry.packages != null ? entry.packages : PackageManagerApis.getPackagesForUidNoThrow(entry.uid);
+            for (String packageName : packages) {
+                if (added.contains(packageName) || Objects.equals(MANAGER_APPLICATION_ID, packageName)) continue;
+
+                PackageInfo pi = ApplicationCandidates.getPackageInfo(packageName, user);
+                if (pi == null || pi.applicationInfo == null || pi.applicationInfo.uid != entry.uid) continue;
 
+                list.add(pi);
+                added.add(packageName);
+            }
         }
-        return new ParcelableListSlice<>(list);
+        return list;
     }
 
     @Override
@@ -457,31 +823,138 @@ public class ShizukuService extends Service<ShizukuUserServiceManager, ShizukuCl
             reply.writeNoException();
             result.writeToParcel(reply, android.os.Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
             return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_getApplicationsSlim) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            if (UserHandleCompat.getAppId(Binder.getCallingUid()) != managerAppId) {
+                throw new SecurityException("getApplicationsSlim is allowed to be called only from the manager");
+            }
+            int userId = data.readInt();
+            reply.writeNoException();
+            writeApplicationsSlim(userId, reply);
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_batch) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            transactBatch(data, reply);
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_getFlagsForUids) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            int[] uids = data.createIntArray();
+            int mask = data.readInt();
+            int[] result = getFlagsForUids(uids, mask);
+            reply.writeNoException();
+            reply.writeIntArray(result);
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_getStartupReport) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            if (UserHandleCompat.getAppId(Binder.getCallingUid()) != managerAppId) {
+                throw new SecurityException("getStartupReport is allowed to be called only from the manager");
+            }
+            reply.writeNoException();
+            reply.writeString(StartupTrace.getReport());
+            return true;
         }
         return super.onTransact(code, data, reply, flags);
     }
 
-    void sendBinderToClient() {
-        for (int userId : UserManagerApis.getUserIdsNoThrow()) {
-            sendBinderToClient(this, userId);
+    /**
+     * Delivers the binder to the apps that were attached to the previous server first, so that
+     * they recover without waiting for the scan of all packages.
+     */
+    private void sendBinderToSnapshot(List<ServerSnapshot.Entry> snapshot, Set<String> sent) {
+        for (ServerSnapshot.Entry entry : snapshot) {
+            if (MANAGER_APPLICATION_ID.equals(entry.packageName)) continue;
+
+            int userId = UserHandleCompat.getUserId(entry.uid);
+            if (sent.add(userId + ":" + entry.packageName)) {
+                sendBinderToUserApp(this, entry.packageName, userId);
+            }
         }
     }
 
-    private static void sendBinderToClient(Binder binder, int userId) {
+    /**
+     * Same as transactRemote, but for a list of transactions. A failed transaction does not stop
+     * the following ones, its error is returned in its place.
+     */
+    private void transactBatch(Parcel data, Parcel reply) {
+        enforceCallingPermission("transactBatch");
+
+        int count = data.readInt();
+        if (count < 0 || count > ServerConstants.BATCH_MAX_TRANSACTIONS) {
+            throw new IllegalArgumentException("invalid batch size " + count);
+        }
+
+        reply.writeNoException();
+        reply.writeInt(count);
+
+        Parcel itemData = Parcel.obtain();
+        Parcel itemReply = Parcel.obtain();
         try {
-            for (PackageInfo pi : PackageManagerApis.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
-                if (pi == null || pi.requestedPermissions == null)
-                    continue;
+            for (int i = 0; i < count; i++) {
+                IBinder targetBinder = data.readStrongBinder();
+                int targetCode = data.readInt();
+                int targetFlags = data.readInt();
+                int size = data.readInt();
+                int position = data.dataPosition();
+                if (size < 0 || size > data.dataAvail()) {
+                    throw new IllegalArgumentException("invalid data size " + size + " at " + i);
+                }
 
-                if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                    sendBinderToUserApp(binder, pi.packageName, userId);
+                itemData.setDataSize(0);
+                itemReply.setDataSize(0);
+                itemData.appendFrom(data, position, size);
+                itemData.setDataPosition(0);
+                data.setDataPosition(position + size);
+
+                String error = null;
+                long id = Binder.clearCallingIdentity();
+                try {
+                    if (targetBinder == null) {
+                        error = "target binder is null";
+                    } else if (!targetBinder.transact(targetCode, itemData, itemReply, targetFlags)) {
+                        error = "unknown transaction code " + targetCode;
+                    }
+                } catch (Throwable tr) {
+                    LOGGER.w(tr, "transactBatch: %d", i);
+                    error = tr.toString();
+                } finally {
+                    Binder.restoreCallingIdentity(id);
+                }
+
+                if (error == null) {
+                    reply.writeInt(ServerConstants.BATCH_RESULT_OK);
+                    reply.writeInt(itemReply.dataSize());
+                    reply.appendFrom(itemReply, 0, itemReply.dataSize());
+                } else {
+                    reply.writeInt(ServerConstants.BATCH_RESULT_ERROR);
+                    reply.writeString(error);
                 }
             }
-        } catch (Throwable tr) {
-            LOGGER.e("exception when call getInstalledPackages", tr);
+        } finally {
+            itemData.recycle();
+            itemReply.recycle();
         }
     }
 
+    void sendBinderToClient() {
+        sendBinderToClient(Collections.emptySet());
+    }
+
+    void sendBinderToClient(Set<String> sent) {
+        // Binders are sent from this thread as the candidates of each user become ready
+        UserEnumerator.forEachUser(ApplicationCandidates::getPackageNames, (userId, candidates) -> {
+            try {
+                for (String packageName : candidates) {
+                    if (sent.contains(userId + ":" + packageName))
+                        continue;
+
+                    sendBinderToUserApp(this, packageName, userId);
+                }
+            } catch (Throwable tr) {
+                LOGGER.e("exception when send binder to user " + userId, tr);
+            }
+        });
+    }
+
     void sendBinderToManager() {
         sendBinderToManger(this);
     }
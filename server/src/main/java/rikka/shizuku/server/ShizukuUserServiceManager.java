@@ -17,6 +17,7 @@ import rikka.shizuku.server.util.UserHandleCompat;
 public class ShizukuUserServiceManager extends UserServiceManager {
 
     private final Map<UserServiceRecord, ApkChangedListener> apkChangedListeners = new ArrayMap<>();
+    private final Map<UserServiceRecord, ServerSnapshot.Entry> snapshotEntries = new ArrayMap<>();
     private final Map<String, List<UserServiceRecord>> userServiceRecords = Collections.synchronizedMap(new ArrayMap<>());
 
     public ShizukuUserServiceManager() {
@@ -69,6 +70,10 @@ public class ShizukuUserServiceManager extends UserServiceManager {
 
         ApkChangedObservers.start(packageInfo.applicationInfo.sourceDir, listener);
         apkChangedListeners.put(record, listener);
+
+        ServerSnapshot.Entry entry = new ServerSnapshot.Entry(packageInfo.applicationInfo.uid, packageName);
+        snapshotEntries.put(record, entry);
+        ServerSnapshot.addUserService(entry.uid, entry.packageName);
     }
 
     @Override
@@ -79,5 +84,9 @@ public class ShizukuUserServiceManager extends UserServiceManager {
             ApkChangedObservers.stop(listener);
             apkChangedListeners.remove(record);
         }
+        ServerSnapshot.Entry entry = snapshotEntries.remove(record);
+        if (entry != null && !snapshotEntries.containsValue(entry)) {
+            ServerSnapshot.removeUserService(entry.uid, entry.packageName);
+        }
     }
 }
@@ -0,0 +1,141 @@
+package rikka.shizuku.server;
+
+import android.os.SystemClock;
+import android.os.Trace;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import rikka.shizuku.ShizukuApiConstants;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Startup phases of the server, as {@link Trace} sections and as a report written to
+ * /data/local/tmp/shizuku/startup.json, which also includes the phases of the native starter.
+ * <p>
+ * The manager reads the report with {@link ServerConstants#BINDER_TRANSACTION_getStartupReport}.
+ * All methods are expected to be called from the main thread.
+ */
+public class StartupTrace {
+
+    private static final Logger LOGGER = new Logger("StartupTrace");
+
+    private static final File FILE = new File("/data/local/tmp/shizuku/startup.json");
+
+    private static final long BEGIN = SystemClock.elapsedRealtime();
+
+    private static final Map<String, Long> PHASES = new LinkedHashMap<>();
+
+    private static String currentName;
+    private static long currentBegin;
+
+    private static String report;
+
+    public static void begin(String name) {
+        end();
+        Trace.beginSection(name);
+        currentName = name;
+        currentBegin = SystemClock.elapsedRealtime();
+    }
+
+    public static void end() {
+        if (currentName == null) {
+            return;
+        }
+        Trace.endSection();
+        PHASES.put(currentName, SystemClock.elapsedRealtime() - currentBegin);
+        currentName = null;
+    }
+
+    /**
+     * Builds the report once the binder is delivered, later calls are ignored.
+     */
+    public static void finish() {
+        end();
+        if (report != null) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        JSONObject json = new JSONObject();
+        try {
+            json.put("version", ShizukuApiConstants.SERVER_VERSION + "." + ShizukuApiConstants.SERVER_PATCH_VERSION);
+            json.put("uid", Os.getuid());
+
+            long begin = BEGIN;
+            String starter = System.getenv("SHIZUKU_STARTER_TRACE");
+            if (starter != null) {
+                // "<begin> <exec> <name>:<duration>,..." from the native starter
+                String[] parts = starter.split(" ", 3);
+                long starterBegin = Long.parseLong(parts[0]);
+                long exec = Long.parseLong(parts[1]);
+
+                JSONObject starterPhases = new JSONObject();
+                if (parts.length > 2 && !parts[2].isEmpty()) {
+                    for (String phase : parts[2].split(",")) {
+                        int index = phase.lastIndexOf(':');
+                        starterPhases.put(phase.substring(0, index), Long.parseLong(phase.substring(index + 1)));
+                    }
+                }
+                json.put("starter", starterPhases);
+                json.put("app_process", BEGIN - exec);
+                if (starterBegin > 0) {
+                    begin = starterBegin;
+                }
+            }
+
+            String restart = System.getenv("SHIZUKU_RESTART");
+            if (restart != null) {
+                // "<time of death> <restart count>" from the supervisor in the starter
+                String[] parts = restart.split(" ");
+                long died = Long.parseLong(parts[0]);
+                JSONObject restartJson = new JSONObject();
+                restartJson.put("count", Integer.parseInt(parts[1]));
+                restartJson.put("recovery", now - died);
+                json.put("restart", restartJson);
+                LOGGER.i("recovered %d ms after crash", now - died);
+            }
+
+            JSONObject serverPhases = new JSONObject();
+            for (Map.Entry<String, Long> entry : PHASES.entrySet()) {
+                serverPhases.put(entry.getKey(), entry.getValue());
+            }
+            json.put("server", serverPhases);
+            json.put("begin", begin);
+            json.put("total", now - begin);
+        } catch (JSONException | NumberFormatException | IndexOutOfBoundsException e) {
+            LOGGER.w(e, "build startup report");
+        }
+
+        report = json.toString();
+        LOGGER.i("startup: %s", report);
+
+        try (FileOutputStream out = new FileOutputStream(FILE)) {
+            out.write(report.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOGGER.w("failed to write startup report: " + e);
+            return;
+        }
+        try {
+            Os.chmod(FILE.getAbsolutePath(), 420 /* 0644 */);
+        } catch (ErrnoException e) {
+            LOGGER.w("failed to chmod startup report: " + e);
+        }
+    }
+
+    @Nullable
+    public static String getReport() {
+        return report;
+    }
+}
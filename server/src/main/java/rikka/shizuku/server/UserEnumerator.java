@@ -0,0 +1,146 @@
+package rikka.shizuku.server;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rikka.hidden.compat.UserManagerApis;
+import rikka.shizuku.server.util.Logger;
+
+/**
+ * Runs a task for each user on a small worker pool, so that PackageManager calls for different
+ * users are made at the same time instead of one after another.
+ * <p>
+ * Results are delivered to the {@link Callback} on the calling thread as each user completes, and
+ * returned in the order of the users once all have completed. Tasks must not call back into
+ * this class, since they would wait for the same pool.
+ */
+public class UserEnumerator {
+
+    private static final Logger LOGGER = new Logger("UserEnumerator");
+
+    private static final int POOL_SIZE = 4;
+    private static final long KEEP_ALIVE = 30;
+
+    public interface Task<T> {
+
+        T run(int userId);
+    }
+
+    public interface Callback<T> {
+
+        void onResult(int userId, T result);
+    }
+
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        AtomicInteger count = new AtomicInteger();
+        EXECUTOR = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "UserEnumerator-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    public static <T> List<T> forEachUser(Task<T> task, @Nullable Callback<T> callback) {
+        return forEachUser(UserManagerApis.getUserIdsNoThrow(), task, callback);
+    }
+
+    /**
+     * @return results of the users in the order of [users], users whose task threw are left out
+     */
+    public static <T> List<T> forEachUser(List<Integer> users, Task<T> task, @Nullable Callback<T> callback) {
+        List<T> results = new ArrayList<>(users.size());
+        if (users.isEmpty()) {
+            return results;
+        }
+
+        // Nothing to run in parallel
+        if (users.size() == 1) {
+            int userId = users.get(0);
+            T result = runTask(task, userId);
+            if (result != null) {
+                if (callback != null) callback.onResult(userId, result);
+                results.add(result);
+            }
+            return results;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+
+        CompletionService<Integer> service = new ExecutorCompletionService<>(EXECUTOR);
+        List<T> byIndex = new ArrayList<>(users.size());
+        for (int i = 0; i < users.size(); i++) {
+            byIndex.add(null);
+        }
+
+        for (int i = 0; i < users.size(); i++) {
+            int index = i;
+            int userId = users.get(i);
+            service.submit(() -> {
+                T result = runTask(task, userId);
+                synchronized (byIndex) {
+                    byIndex.set(index, result);
+                }
+                return index;
+            });
+        }
+
+        boolean interrupted = false;
+        for (int i = 0; i < users.size(); i++) {
+            int index;
+            try {
+                index = service.take().get();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                i--;
+                continue;
+            } catch (ExecutionException e) {
+                // runTask does not throw
+                LOGGER.w(e, "forEachUser");
+                continue;
+            }
+
+            T result;
+            synchronized (byIndex) {
+                result = byIndex.get(index);
+            }
+            if (result != null && callback != null) {
+                callback.onResult(users.get(index), result);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (byIndex) {
+            for (T result : byIndex) {
+                if (result != null) results.add(result);
+            }
+        }
+        LOGGER.d("forEachUser: %d users, %d ms", users.size(), SystemClock.elapsedRealtime() - start);
+        return results;
+    }
+
+    @Nullable
+    private static <T> T runTask(Task<T> task, int userId) {
+        try {
+            return task.run(userId);
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "task for user %d", userId);
+            return null;
+        }
+    }
+}